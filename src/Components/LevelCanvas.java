@@ -2,8 +2,21 @@ package Components;
 
 import Core.EditorWindow;
 import Core.EditorWindow.EditorMode;
+import History.CellDelta;
+import History.Edit;
+import History.EditHistory;
+import Rendering.LayerCompositor;
+import Rendering.LayerRenderer;
+import Rendering.RenderBudget;
+import Rendering.SpriteCache;
+import Serial.Chunk;
+import Serial.ChunkSource;
+import Serial.Journal;
+import Serial.Layer;
 import Serial.LevelData;
-import Serial.Tile;
+import Serial.LevelReader;
+import Serial.LevelWriter;
+import Serial.Palette;
 import com.sun.deploy.panel.JavaPanel;
 
 import javax.imageio.ImageIO;
@@ -14,9 +27,14 @@ import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The canvas for the level editor. Allows the user to zoom and pan around the level's grid and paint tiles.
@@ -24,11 +42,42 @@ import java.util.ArrayList;
 public class LevelCanvas extends JPanel implements MouseWheelListener, MouseListener, MouseMotionListener, KeyListener {
 
     /**
-     * The level's grid of tiles.
+     * The level's layers. Each layer is a grid of indices into the level's palette.
      */
-    private ArrayList<Tile[][]> layers;
+    private ArrayList<Layer> layers;
+
+    /**
+     * The distinct tiles used by the level.
+     */
+    private Palette palette;
     public int currentLayer;
 
+    /**
+     * The renderers holding the pre-rendered chunks of each layer. Each renderer shares its index with its layer.
+     */
+    private ArrayList<LayerRenderer> layerRenderers;
+
+    /**
+     * The layers below and above the current layer, each flattened into cached images.
+     */
+    private final LayerCompositor belowCompositor, aboveCompositor;
+
+    /**
+     * The threads which every layer's renderer renders its dirty chunks on. Shut down once the canvas is disposed.
+     */
+    private final ExecutorService renderExecutor;
+
+    /**
+     * The memory budget shared by the pre-rendered chunks of every layer, so that it doesn't grow with their number.
+     */
+    private final RenderBudget renderBudget;
+
+    /**
+     * An image which a translucent current layer is drawn into before it's blended with the rest. Is null until it's
+     * needed.
+     */
+    private BufferedImage layerScratch;
+
     /**
      * The width/height of the level's grid.
      */
@@ -43,9 +92,25 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
      * The zoom scale of viewport. The higher the value, the more zoomed in the grid appears.
      */
     private double scale;
-    private final double MIN_SCALE = 0.3;
+    private final double MIN_SCALE = 0.02;
     private final double MAX_SCALE = 3;
 
+    /**
+     * The factor the zoom scale is multiplied or divided by for each step of the mouse wheel.
+     */
+    private final double ZOOM_STEP = 1.1;
+
+    /**
+     * The minimum distance, in pixels, between grid lines. When tiles are smaller than this, grid lines are only drawn
+     * around groups of tiles, and not at all once the groups would be larger than a chunk.
+     */
+    private final double GRID_SPACING = 8;
+
+    /**
+     * The texture atlas pages of the level's tiles, pre-scaled to the current zoom scale.
+     */
+    private final SpriteCache spriteCache;
+
     /**
      * The previous location that the mouse was last clicked on the viewport. Used to track panning.
      */
@@ -61,6 +126,23 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
      */
     private int xPosition, yPosition;
 
+    /**
+     * The last frame painted to the viewport. When the viewport is panned, the frame is moved instead of rendering it
+     * again, and only the strips it uncovers are rendered.
+     */
+    private BufferedImage frame;
+
+    /**
+     * The x/y position of the level's top-left corner within the last frame (in pixels).
+     */
+    private int frameX, frameY;
+
+    /**
+     * The area which has changed since the last frame was painted, relative to the level's top-left corner (in
+     * pixels), so that it stays in place when the viewport is panned. Is null if nothing has changed.
+     */
+    private Rectangle damaged;
+
     private final EditorWindow EDITOR;
 
     private boolean ctrlSelect;
@@ -71,6 +153,33 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
     private JPanel resizeDirectionPanel;
     private int resizeOption = 4;
 
+    /**
+     * The undo/redo history of the level.
+     */
+    private final EditHistory history;
+
+    /**
+     * The cells changed by the brush stroke currently in progress, and the layer they belong to. Are null when the
+     * mouse isn't being dragged.
+     */
+    private CellDelta currentStroke;
+    private Layer strokeLayer;
+
+    /**
+     * The export currently being written in the background, or null if no level has been exported yet.
+     */
+    private ExportWorker exportWorker;
+
+    /**
+     * The journal recording every edit to the level for crash recovery, or null if autosave isn't running.
+     */
+    private Journal journal;
+
+    /** The directory the autosave journal is kept in. */
+    private static final Path AUTOSAVE_DIRECTORY = Paths.get(
+            System.getProperty("user.home"), ".level-editor", "autosave"
+    );
+
     /**
      * Initializes a new instance of the level editor's viewport.
      *
@@ -82,10 +191,17 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
         this.width = width;
         this.height = height;
         layers = new ArrayList<>();
+        palette = new Palette();
+        layerRenderers = new ArrayList<>();
+        renderExecutor = LayerRenderer.createExecutor();
+        renderBudget = new RenderBudget();
+        belowCompositor = new LayerCompositor(false);
+        aboveCompositor = new LayerCompositor(true);
         currentLayer = -1;
 
         prevPoint = new Point(0, 0);
         scale = 1.0;
+        spriteCache = new SpriteCache();
         xOffset = 0;
         yOffset = 0;
         xPosition = 0;
@@ -97,6 +213,10 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
 
         EDITOR = editor;
 
+        history = new EditHistory();
+        currentStroke = null;
+        strokeLayer = null;
+
         fileChooser = new JFileChooser();
         fileChooser.setAcceptAllFileFilterUsed(false);
         FileNameExtensionFilter filter = new FileNameExtensionFilter(
@@ -158,31 +278,64 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
         int xPos = xPosition + xOffset;
         int scaledSizeInt = (int) Math.ceil(scaledSize);
 
-        // Draw vertical grid lines
-        for (int x = 0; x <= width; x++) {
-            int xPos2 = (int) (x * scaledSize) + xPos;
-            g2.drawLine(xPos2, yPos, xPos2, yPos + (int) (height * scaledSize));
-        }
+        // Only the tiles within this range are on screen and need to be repainted
+        Rectangle area = g2.getClipBounds();
+        if (area == null) area = new Rectangle(0, 0, getWidth(), getHeight());
 
-        // Draw horizontal grid lines
-        for (int y = 0; y <= height; y++) {
-            int yPos2 = (int) (y * scaledSize) + yPos;
-            g2.drawLine(xPos, yPos2, xPos + (int) (width * scaledSize), yPos2);
-        }
+        Rectangle visible = getVisibleTiles(area, xPos, yPos, scaledSize);
 
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                if (layers.get(currentLayer)[x][y] == null) continue;
+        if (!visible.isEmpty()) {
+            int minX = visible.x;
+            int minY = visible.y;
+            int maxX = visible.x + visible.width;
+            int maxY = visible.y + visible.height;
 
-                // Create filled square if it exists
-                g2.setColor(Color.DARK_GRAY);
+            int top = (int) (minY * scaledSize) + yPos;
+            int bottom = (int) (maxY * scaledSize) + yPos;
+            int left = (int) (minX * scaledSize) + xPos;
+            int right = (int) (maxX * scaledSize) + xPos;
 
-                int newX = (int) (x * scaledSize) + xPos;
-                int newY = (int) (y * scaledSize) + yPos;
+            // The number of tiles between grid lines, so that the lines don't crowd together when zoomed out
+            int step = 1;
+            while (step * scaledSize < GRID_SPACING) step *= 2;
+
+            if (step <= Chunk.SIZE) {
+                // Draw vertical grid lines
+                for (int x = (minX + step - 1) / step * step; x <= maxX; x += step) {
+                    int xPos2 = (int) (x * scaledSize) + xPos;
+                    g2.drawLine(xPos2, top, xPos2, bottom);
+                }
 
-                // Draw current tile
-                layers.get(currentLayer)[x][y].draw(g2, newX, newY, scaledSizeInt, this);
+                // Draw horizontal grid lines
+                for (int y = (minY + step - 1) / step * step; y <= maxY; y += step) {
+                    int yPos2 = (int) (y * scaledSize) + yPos;
+                    g2.drawLine(left, yPos2, right, yPos2);
+                }
             }
+
+            // Draw the flattened layers below the current layer, the current layer's pre-rendered chunks, then the
+            // flattened layers above it
+            belowCompositor.draw(
+                    g2, layers, layerRenderers, 0, currentLayer, palette, visible, xPos, yPos, scaledSize,
+                    spriteCache, this
+            );
+
+            if ((layerScratch == null) || (layerScratch.getWidth() < area.width)
+                    || (layerScratch.getHeight() < area.height)) {
+                layerScratch = SpriteCache.createCompatibleImage(
+                        Math.max(area.width, getWidth()), Math.max(area.height, getHeight())
+                );
+            }
+
+            layerRenderers.get(currentLayer).drawBlended(
+                    g2, AlphaComposite.SRC_OVER, area, layerScratch, layers.get(currentLayer), palette, visible,
+                    xPos, yPos, scaledSize, spriteCache, this
+            );
+
+            aboveCompositor.draw(
+                    g2, layers, layerRenderers, currentLayer + 1, layers.size(), palette, visible, xPos, yPos,
+                    scaledSize, spriteCache, this
+            );
         }
 
         if ((selectX != -1) && (selectY != -1)) {
@@ -197,15 +350,129 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
         }
     }
 
+    /**
+     * Calculates which of the level's tiles are within the given area of the canvas.
+     *
+     * @param area The area of the canvas (in pixels), usually the clip bounds of the current repaint.
+     * @param xPos The x coordinate of the level's top-left corner on screen (in pixels).
+     * @param yPos The y coordinate of the level's top-left corner on screen (in pixels).
+     * @param scaledSize The width/height of a tile on screen (in pixels).
+     * @return The range of visible tiles in grid coordinates. Is empty if no tiles are visible.
+     */
+    private Rectangle getVisibleTiles(Rectangle area, int xPos, int yPos, double scaledSize) {
+        // Tiles are drawn rounded up in size, so the tile before the area may overlap it by a pixel
+        int minX = Math.max(0, (int) Math.floor((area.x - xPos) / scaledSize) - 1);
+        int minY = Math.max(0, (int) Math.floor((area.y - yPos) / scaledSize) - 1);
+        int maxX = Math.min(width, (int) Math.ceil((area.x + area.width - xPos) / scaledSize));
+        int maxY = Math.min(height, (int) Math.ceil((area.y + area.height - yPos) / scaledSize));
+
+        return new Rectangle(minX, minY, Math.max(0, maxX - minX), Math.max(0, maxY - minY));
+    }
+
+    /**
+     * Calculates the area of the canvas taken up by a tile, including the grid lines and selection icon around it.
+     *
+     * @param x The x coordinate of the tile in grid coordinates.
+     * @param y The y coordinate of the tile in grid coordinates.
+     * @return The bounds of the tile on screen (in pixels).
+     */
+    private Rectangle getTileBounds(int x, int y) {
+        double scaledSize = TILE_SIZE * scale;
+        int size = (int) Math.ceil(scaledSize) + 1;
+
+        return new Rectangle(
+                (int) (x * scaledSize) + xPosition + xOffset,
+                (int) (y * scaledSize) + yPosition + yOffset,
+                size, size
+        );
+    }
+
     @Override
     public void paintComponent(Graphics g) {
-        super.paintComponent(g); // Clear panel
+        int width = getWidth();
+        int height = getHeight();
+        if ((width <= 0) || (height <= 0)) return;
+
+        int xPos = xPosition + xOffset;
+        int yPos = yPosition + yOffset;
+
+        if ((frame == null) || (frame.getWidth() != width) || (frame.getHeight() != height)) {
+            GraphicsConfiguration config = getGraphicsConfiguration();
+            frame = (config != null) ? config.createCompatibleImage(width, height)
+                    : new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+            renderFrame(new Rectangle(0, 0, width, height));
+        } else {
+            int dx = xPos - frameX;
+            int dy = yPos - frameY;
+
+            if ((dx != 0) || (dy != 0)) {
+                // Move the previous frame along with the viewport, then render only the strips it uncovered
+                Graphics2D frameGraphics = frame.createGraphics();
+                frameGraphics.copyArea(0, 0, width, height, dx, dy);
+                frameGraphics.dispose();
+
+                if (dx > 0) renderFrame(new Rectangle(0, 0, dx, height));
+                if (dx < 0) renderFrame(new Rectangle(width + dx, 0, -dx, height));
+                if (dy > 0) renderFrame(new Rectangle(0, 0, width, dy));
+                if (dy < 0) renderFrame(new Rectangle(0, height + dy, width, -dy));
+            }
+
+            if (damaged != null) {
+                damaged.translate(xPos, yPos);
+                renderFrame(damaged.intersection(new Rectangle(0, 0, width, height)));
+            }
+        }
+
+        damaged = null;
+        frameX = xPos;
+        frameY = yPos;
+
+        g.drawImage(frame, 0, 0, null);
+
+        g.dispose(); // Dispose of graphics resources (this has to be last)
+    }
+
+    /**
+     * Renders an area of the viewport into the frame.
+     *
+     * @param area The area of the viewport (in pixels).
+     */
+    private void renderFrame(Rectangle area) {
+        if (area.isEmpty()) return;
+
+        Graphics2D g2 = frame.createGraphics();
+        g2.clip(area);
+
+        // Clear the area
+        g2.setColor(getBackground());
+        g2.fillRect(area.x, area.y, area.width, area.height);
 
         // Draw tiles
-        Graphics2D g2 = (Graphics2D) g;
+        g2.setColor(getForeground());
         drawGrid(g2);
 
-        g.dispose(); // Dispose of graphics resources (this has to be last)
+        g2.dispose();
+    }
+
+    /**
+     * Marks the repainted area as changed, so that it's rendered again rather than moved from the previous frame.
+     * Every other repaint method of the component ends up here.
+     */
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {
+        Rectangle area = new Rectangle(x - xPosition - xOffset, y - yPosition - yOffset, width, height);
+        damaged = (damaged == null) ? area : damaged.union(area);
+
+        super.repaint(tm, x, y, width, height);
+    }
+
+    /**
+     * Repaints the viewport after it has been panned. Nothing has changed, so the previous frame is moved rather than
+     * rendered again.
+     */
+    private void repaintMoved() {
+        super.repaint(0, 0, 0, getWidth(), getHeight());
     }
 
     /**
@@ -224,10 +491,165 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
 
         // If the coordinates are within the bounds of the array
         if ((x >= 0 && x < width) && (y >= 0 && y < height)) {
-            layers.get(currentLayer)[x][y] = erase ? null : EDITOR.getCurrentTile();
+            int index = erase ? Palette.EMPTY : palette.indexOf(EDITOR.getCurrentTile());
+
+            int previous = layers.get(currentLayer).set(x, y, index);
+
+            // Only the changed tile has to be redrawn
+            if (previous != index) {
+                updateTile(currentLayer, x, y);
+                repaint(getTileBounds(x, y));
+
+                // Record the change as part of the current brush stroke
+                if (currentStroke == null) {
+                    currentStroke = new CellDelta();
+                    strokeLayer = layers.get(currentLayer);
+                }
+                currentStroke.record(x, y, previous, index);
+                if (journal != null) journal.setCell(currentLayer, x, y, index);
+            }
         }
+    }
 
-        repaint();
+    /**
+     * Redraws a changed tile of a layer within the layer's pre-rendered chunks. If the layer isn't the current layer,
+     * the flattened layers which may hold the tile are flattened again.
+     *
+     * @param layerIndex The index of the layer.
+     * @param x The x coordinate of the tile in grid coordinates.
+     * @param y The y coordinate of the tile in grid coordinates.
+     */
+    private void updateTile(int layerIndex, int x, int y) {
+        layerRenderers.get(layerIndex).updateTile(
+                layers.get(layerIndex), palette, x, y, TILE_SIZE * scale, spriteCache
+        );
+
+        // Flattened images only ever hold layers other than the current one
+        if (layerIndex != currentLayer) {
+            belowCompositor.markDirty(x, y);
+            aboveCompositor.markDirty(x, y);
+        }
+    }
+
+    /**
+     * Marks the pre-rendered chunks of a layer holding any of the changed cells as dirty, once per chunk rather than
+     * redrawing each cell on its own. If the layer isn't the current layer, the flattened layers which may hold the
+     * chunks are flattened again. Used when many cells change at once, e.g., when a brush stroke is undone.
+     *
+     * @param layerIndex The index of the layer.
+     * @param delta The changed cells.
+     */
+    private void updateCells(int layerIndex, CellDelta delta) {
+        Layer layer = layers.get(layerIndex);
+        LayerRenderer renderer = layerRenderers.get(layerIndex);
+
+        HashSet<Long> chunkKeys = new HashSet<>();
+        for (int i = 0; i < delta.size(); i++) {
+            chunkKeys.add(Layer.key(
+                    (delta.getX(i) + layer.getOriginX()) >> Chunk.SHIFT,
+                    (delta.getY(i) + layer.getOriginY()) >> Chunk.SHIFT
+            ));
+        }
+
+        Rectangle bounds = new Rectangle(0, 0, width, height);
+        for (long key : chunkKeys) {
+            int chunkX = Layer.keyX(key);
+            int chunkY = Layer.keyY(key);
+            renderer.markChunkDirty(chunkX, chunkY);
+
+            // Flattened images only ever hold layers other than the current one
+            if (layerIndex != currentLayer) {
+                Rectangle cells = new Rectangle(
+                        (chunkX << Chunk.SHIFT) - layer.getOriginX(), (chunkY << Chunk.SHIFT) - layer.getOriginY(),
+                        Chunk.SIZE, Chunk.SIZE
+                ).intersection(bounds);
+
+                if (!cells.isEmpty()) {
+                    belowCompositor.markDirty(cells);
+                    aboveCompositor.markDirty(cells);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the renderer of a layer, which repaints the canvas whenever one of its chunks finishes rendering.
+     */
+    private LayerRenderer createRenderer() {
+        LayerRenderer renderer = new LayerRenderer(renderBudget, renderExecutor);
+        renderer.setOnChunkRendered(cells -> chunkRendered(renderer, cells));
+
+        return renderer;
+    }
+
+    /**
+     * Repaints a chunk of a layer which has finished rendering in the background. If the layer isn't the current
+     * layer, the flattened layers which may hold the chunk are flattened again.
+     *
+     * @param renderer The renderer of the layer.
+     * @param cells The chunk's cells in grid coordinates.
+     */
+    private void chunkRendered(LayerRenderer renderer, Rectangle cells) {
+        int layerIndex = layerRenderers.indexOf(renderer);
+        if (layerIndex < 0) return; // The layer has been removed since
+
+        // Flattened images only ever hold layers other than the current one
+        if (layerIndex != currentLayer) {
+            belowCompositor.markDirty(cells);
+            aboveCompositor.markDirty(cells);
+        }
+
+        double scaledSize = TILE_SIZE * scale;
+        int x = (int) (cells.x * scaledSize) + xPosition + xOffset;
+        int y = (int) (cells.y * scaledSize) + yPosition + yOffset;
+
+        // The chunk image extends a tile beyond its cells
+        repaint(
+                x, y, (int) ((cells.x + cells.width + 1) * scaledSize) + xPosition + xOffset - x,
+                (int) ((cells.y + cells.height + 1) * scaledSize) + yPosition + yOffset - y
+        );
+    }
+
+    /**
+     * Marks every pre-rendered chunk and flattened image as dirty. Used when the contents of every layer, or which
+     * layers there are, have changed.
+     */
+    private void markAllDirty() {
+        for (LayerRenderer renderer : layerRenderers) {
+            renderer.markAllDirty();
+        }
+
+        belowCompositor.markAllDirty();
+        aboveCompositor.markAllDirty();
+    }
+
+    /**
+     * Ends the current brush stroke, recording all of its changes as a single edit in the history.
+     */
+    private void finishStroke() {
+        if (currentStroke == null) return;
+
+        currentStroke.finish();
+        history.push(new StrokeEdit(strokeLayer, currentStroke));
+
+        currentStroke = null;
+        strokeLayer = null;
+    }
+
+    /**
+     * Undoes the most recent edit to the level.
+     */
+    public void undo() {
+        finishStroke();
+        if (history.undo()) repaint();
+    }
+
+    /**
+     * Redoes the most recently undone edit to the level.
+     */
+    public void redo() {
+        finishStroke();
+        if (history.redo()) repaint();
     }
 
     /**
@@ -240,38 +662,171 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
         xOffset = 0;
         yOffset = 0;
         scale = 1;
+        clearRenderCaches();
 
         repaint();
     }
 
-    public void addLayer() {
-        layers.add(new Tile[width][height]);
-        currentLayer = Math.max(0, currentLayer + 1);
-        repaint();
+    /**
+     * Adds a new, empty layer on top of the level's other layers and makes it the current layer.
+     *
+     * @param name The name of the new layer.
+     */
+    public void addLayer(String name) {
+        finishStroke();
+
+        LayerEdit edit = new LayerEdit(new Layer(name, width, height), layers.size(), true);
+        edit.redo();
+        history.push(edit);
     }
 
     public void removeCurrentLayer() {
         if (currentLayer < 0) return;
 
-        layers.remove(currentLayer);
-        currentLayer = Math.min(layers.size() - 1, currentLayer);
+        finishStroke();
+
+        LayerEdit edit = new LayerEdit(layers.get(currentLayer), currentLayer, false);
+        edit.redo();
+        history.push(edit);
+    }
+
+    /**
+     * Inserts a layer into the level and makes it the current layer.
+     */
+    private void insertLayer(int index, Layer layer) {
+        layers.add(index, layer);
+        layerRenderers.add(index, createRenderer());
+        currentLayer = index;
+
+        // Flattened images hold layers by their index, which has changed
+        belowCompositor.markAllDirty();
+        aboveCompositor.markAllDirty();
+        if (journal != null) journal.addLayer(index, layer);
+
+        fireLayersChanged();
+        repaint();
+    }
+
+    /**
+     * Removes a layer from the level. The layer below it becomes the current layer.
+     */
+    private void deleteLayer(int index) {
+        layers.remove(index);
+        layerRenderers.remove(index).dispose();
+        currentLayer = Math.min(layers.size() - 1, index);
+
+        // Flattened images hold layers by their index, which has changed
+        belowCompositor.markAllDirty();
+        aboveCompositor.markAllDirty();
+        if (journal != null) journal.removeLayer(index);
+
+        fireLayersChanged();
+        repaint();
+    }
+
+    /**
+     * Notifies listeners (i.e., the layer controls) that layers were added, removed or the current layer changed.
+     */
+    private void fireLayersChanged() {
+        firePropertyChange("layers", null, layers.size());
+    }
+
+    /**
+     * @return The names of the level's layers, from the bottom layer to the top layer.
+     */
+    public List<String> getLayerNames() {
+        ArrayList<String> names = new ArrayList<>();
+        for (Layer layer : layers) {
+            names.add(layer.getName());
+        }
+
+        return names;
+    }
+
+    /**
+     * @param index The index of the layer.
+     * @return Whether the layer is shown.
+     */
+    public boolean isLayerVisible(int index) {
+        return layerRenderers.get(index).isVisible();
+    }
+
+    /**
+     * Shows or hides a layer.
+     *
+     * @param index The index of the layer.
+     * @param visible Whether the layer is shown.
+     */
+    public void setLayerVisible(int index, boolean visible) {
+        layerRenderers.get(index).setVisible(visible);
+        layerAppearanceChanged(index);
+    }
+
+    /**
+     * @param index The index of the layer.
+     * @return The opacity the layer is drawn with, from 0 (transparent) to 1 (opaque).
+     */
+    public float getLayerOpacity(int index) {
+        return layerRenderers.get(index).getOpacity();
+    }
+
+    /**
+     * Changes the opacity a layer is drawn with.
+     *
+     * @param index The index of the layer.
+     * @param opacity The opacity the layer is drawn with, from 0 (transparent) to 1 (opaque).
+     */
+    public void setLayerOpacity(int index, float opacity) {
+        layerRenderers.get(index).setOpacity(opacity);
+        layerAppearanceChanged(index);
+    }
+
+    /**
+     * Flattens the layers other than the current layer again after one of them is shown, hidden or made more or less
+     * opaque. The layer's pre-rendered chunks are unaffected.
+     */
+    private void layerAppearanceChanged(int index) {
+        if (index != currentLayer) {
+            belowCompositor.markAllDirty();
+            aboveCompositor.markAllDirty();
+        }
+
         repaint();
     }
 
+    /**
+     * Discards all pre-scaled atlas pages and pre-rendered chunks. Should be called whenever the zoom scale changes.
+     */
+    private void clearRenderCaches() {
+        spriteCache.clear();
+
+        for (LayerRenderer renderer : layerRenderers) {
+            renderer.clear();
+        }
+
+        belowCompositor.clear();
+        aboveCompositor.clear();
+    }
+
     private void selectTile(Point point) {
         Point pos = screenToGrid(point);
 
         System.out.println("position: " + pos);
 
+        // Clear the previous selection icon
+        if ((selectX != -1) && (selectY != -1)) {
+            repaint(getTileBounds(selectX, selectY));
+        }
+
         if (pos.x >= 0 && pos.x < width && pos.y >= 0 && pos.y < height) {
             selectX = pos.x;
             selectY = pos.y;
+
+            repaint(getTileBounds(selectX, selectY));
         } else {
             selectX = -1;
             selectY = -1;
         }
-
-        repaint();
     }
 
     /**
@@ -288,7 +843,19 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
         return new Point(x, y);
     }
 
-    public void exportLevelFile() throws IOException {
+    /**
+     * Prompts the user for a file and a level name, and exports the level to the file in the background. The level's
+     * layers are snapshotted first, so that they can still be edited while the export is written.
+     */
+    public void exportLevelFile() {
+        if ((exportWorker != null) && !exportWorker.isDone()) {
+            JOptionPane.showMessageDialog(null,
+                    "The level is already being exported.",
+                    "Export Level", JOptionPane.INFORMATION_MESSAGE
+            );
+            return;
+        }
+
         int val = fileChooser.showSaveDialog(null);
 
         if (val != JFileChooser.APPROVE_OPTION) return;
@@ -301,14 +868,160 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
 
         if (levelName == null || levelName.trim().isEmpty()) return;
 
-        LevelData level = new LevelData(layers, levelName, width, height);
+        finishStroke();
+        LevelData level = new LevelData(palette, layers, levelName, width, height);
+
+        exportWorker = new ExportWorker(level, fileChooser.getSelectedFile());
+        exportWorker.execute();
+    }
+
+    /**
+     * Prompts the user for a level file and replaces the current level with it.
+     */
+    public void openLevelFile() {
+        int val = fileChooser.showOpenDialog(null);
+
+        if (val != JFileChooser.APPROVE_OPTION) return;
+
+        File file = fileChooser.getSelectedFile();
+        LevelData level;
+
+        // Damaged chunks are only found once they're loaded, and are left empty so that the rest can still be edited
+        AtomicBoolean warned = new AtomicBoolean();
+        try {
+            level = LevelReader.open(file.toPath(), ChunkSource.DEFAULT_CAPACITY, message -> {
+                System.err.println("Error: " + message);
+
+                // A damaged file usually has many damaged chunks, so only the first one is shown
+                if (!warned.compareAndSet(false, true)) return;
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null,
+                        file.getName() + " is damaged, and some of its chunks have been left empty:\n" + message,
+                        "Warning", JOptionPane.WARNING_MESSAGE
+                ));
+            });
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null,
+                    "Unable to open " + file.getName() + ":\n" + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE
+            );
+            return;
+        }
+
+        loadLevel(level);
+    }
+
+    /**
+     * Replaces the current level with the given level. The level's layers and palette are taken over without being
+     * copied, and the undo history is cleared.
+     *
+     * @param level The level to load.
+     */
+    public void loadLevel(LevelData level) {
+        finishStroke();
+        history.clear();
+
+        palette = level.palette;
+        width = level.width;
+        height = level.height;
+
+        layers.clear();
+        for (LayerRenderer renderer : layerRenderers) {
+            renderer.dispose();
+        }
+        layerRenderers.clear();
+        belowCompositor.clear();
+        aboveCompositor.clear();
+        for (Layer layer : level.layers) {
+            layers.add(layer);
+            layerRenderers.add(createRenderer());
+        }
+        currentLayer = layers.isEmpty() ? -1 : 0;
+
+        selectX = -1;
+        selectY = -1;
+
+        // Tilesets which haven't been loaded yet are resolved once they are
+        HashSet<String> tilesetIDs = new HashSet<>();
+        for (int i = 1; i < palette.size(); i++) {
+            tilesetIDs.add(palette.get(i).getTilesetID());
+        }
+        EDITOR.loadTilesets(tilesetIDs);
+
+        resolveTiles();
+        fireLayersChanged();
+
+        if (journal != null) journal.checkpoint(palette);
+    }
+
+    /**
+     * Starts recording every edit to the level in the autosave journal. If the journal holds a level from a previous
+     * session, which only happens if that session didn't shut down normally, the user is first asked whether to restore
+     * it. Autosave isn't started if another instance of the editor
+     * is already using the journal.
+     */
+    public void startAutosave() {
+        Journal started;
+        try {
+            started = new Journal(
+                    AUTOSAVE_DIRECTORY, () -> new LevelData(palette, layers, "Autosave", width, height)
+            );
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(null,
+                    "Unable to start autosave:\n" + e.getMessage(),
+                    "Error", JOptionPane.ERROR_MESSAGE
+            );
+            return;
+        }
+
+        LevelData recovered = null;
+        try {
+            recovered = started.recover();
+        } catch (IOException e) {
+            System.err.println("Error: unable to recover autosave: " + e.getMessage());
+        }
+
+        if (recovered != null) {
+            int choice = JOptionPane.showConfirmDialog(null,
+                    "The editor didn't shut down properly. Restore the level from your last session?",
+                    "Autosave", JOptionPane.YES_NO_OPTION
+            );
+
+            if (choice == JOptionPane.YES_OPTION) loadLevel(recovered);
+        }
+
+        journal = started;
+        journal.checkpoint(palette);
+    }
+
+    /**
+     * Stops recording edits after the editor has been closed normally, removing the autosave journal so that the next
+     * session doesn't offer to restore the level.
+     */
+    public void stopAutosave() {
+        finishStroke();
+        if (journal != null) journal.close(true);
+        journal = null;
+    }
+
+    /**
+     * Stops autosaving and rendering chunks in the background. Should be called once the canvas is closed for good.
+     */
+    public void dispose() {
+        stopAutosave();
+        renderExecutor.shutdownNow();
+    }
 
-        File fileToSave = fileChooser.getSelectedFile();
-        ObjectOutputStream outputStream = new ObjectOutputStream(Files.newOutputStream(fileToSave.toPath()));
+    /**
+     * Looks up the sprites of the palette's tiles from the imported tilesets. Should be called after a level is
+     * loaded or a tileset is imported.
+     */
+    public void resolveTiles() {
+        palette.resolve(EDITOR::findTile);
 
-        outputStream.writeObject(level);
+        // Chunks may have been rendered while some of their sprites were missing
+        markAllDirty();
 
-        outputStream.close();
+        repaint();
     }
 
     public void resizeCanvas() {
@@ -390,108 +1103,55 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
         // If the size wasn't changed
         if ((newWidth == width) && (newHeight == height)) return;
 
-        for (int i = 0; i < layers.size(); i++) {
-            Tile[][] newLayer = new Tile[newWidth][newHeight];
-            Tile[][] oldLayer = layers.get(i);
-
-            int xBound = Math.min(width, newWidth);
-            int yBound = Math.min(height, newHeight);
-            int xMaxBound = Math.max(width, newWidth);
-            int yMaxBound = Math.max(height, newHeight);
+        if ((resizeOption < 0) || (resizeOption > 8)) {
+            System.err.println("Error: invalid resize option");
+            resizeOption = 4;
+            return;
+        }
 
-            int xOffset = (xMaxBound - xBound) / 2;
-            int yOffset = (yMaxBound - yBound) / 2;
+        // The anchor is the opposite side of the direction the level grows towards (e.g., the top-left button keeps
+        // the bottom-right corner in place)
+        int xShift = getResizeShift(resizeOption % 3, width, newWidth);
+        int yShift = getResizeShift(resizeOption / 3, height, newHeight);
 
-            int newXOffset = (newWidth > width) ? xOffset : 0;
-            int newYOffset = (newHeight > height) ? yOffset : 0;
-            int oldXOffset = (newWidth < width) ? xOffset : 0;
-            int oldYOffset = (newHeight < height) ? yOffset : 0;
+        finishStroke();
 
-            switch (resizeOption) {
-                case 0:
-                    for (int x = 0; x < xBound; x++) {
-                        for (int y = 0; y < yBound; y++) {
-                            newLayer[newWidth - 1 - x][newHeight - 1 - y] = oldLayer[width - 1 - x][height - 1 - y];
-                        }
-                    }
-                    break;
-                case 1:
-                    for (int x = 0; x < xBound; x++) {
-                        for (int y = 0; y < yBound; y++) {
-                            newLayer[x + newXOffset][newHeight - 1 - y] = oldLayer[x + oldXOffset][height - 1 - y];
-                        }
-                    }
-                    break;
-                case 2:
-                    for (int x = 0; x < xBound; x++) {
-                        for (int y = 0; y < yBound; y++) {
-                            newLayer[x][newHeight - 1 - y] = oldLayer[x][height - 1 - y];
-                        }
-                    }
-                    break;
-                case 3:
-                    for (int x = 0; x < xBound; x++) {
-                        for (int y = 0; y < yBound; y++) {
-                            newLayer[newWidth - 1 - x][y + newYOffset] = oldLayer[width - 1 - x][y + oldYOffset];
-                        }
-                    }
-                    break;
-                case 4:
-                    for (int x = 0; x < xBound; x++) {
-                        for (int y = 0; y < yBound; y++) {
-                            newLayer[x + newXOffset][y + newYOffset] = oldLayer[x + oldXOffset][y + oldYOffset];
-                        }
-                    }
-
-                    break;
-                case 5:
-                    for (int x = 0; x < xBound; x++) {
-                        for (int y = 0; y < yBound; y++) {
-                            newLayer[x][y + newYOffset] = oldLayer[x][y + oldYOffset];
-                        }
-                    }
-                    break;
-                case 6:
-                    for (int x = 0; x < xBound; x++) {
-                        for (int y = 0; y < yBound; y++) {
-                            newLayer[newWidth - 1 - x][y] = oldLayer[width - 1 - x][y];
-                        }
-                    }
-                    break;
-                case 7:
-                    for (int x = 0; x < xBound; x++) {
-                        for (int y = 0; y < yBound; y++) {
-                            newLayer[x + newXOffset][y] = oldLayer[x + oldXOffset][y];
-                        }
-                    }
-                    break;
-                case 8:
-                    for (int x = 0; x < xBound; x++) {
-                        for (int y = 0; y < yBound; y++) {
-                            newLayer[x][y] = oldLayer[x][y];
-                        }
-                    }
-                    break;
-                default:
-                    System.err.println("Error: invalid resize option");
-                    resizeOption = 4;
-                    break;
-            }
+        ResizeEdit edit = new ResizeEdit(width, height, newWidth, newHeight, xShift, yShift);
+        edit.redo();
+        history.push(edit);
+    }
 
-            layers.set(i, newLayer);
+    /**
+     * Calculates how far the existing tiles move along one axis when the level is resized.
+     *
+     * @param anchor Which side stays in place: 0 for the far side (right/bottom), 1 for the center and 2 for the near
+     *               side (left/top).
+     * @param size The current number of tiles along the axis.
+     * @param newSize The new number of tiles along the axis.
+     * @return The number of tiles the existing tiles move along the axis.
+     */
+    private static int getResizeShift(int anchor, int size, int newSize) {
+        switch (anchor) {
+            case 0:
+                return newSize - size;
+            case 1:
+                return (newSize - size) / 2;
+            default:
+                return 0;
         }
-
-        width = newWidth;
-        height = newHeight;
-
-        repaint();
     }
 
     @Override
     public void mouseWheelMoved(MouseWheelEvent e) {
-        scale -= 0.1 * e.getWheelRotation(); // Change the scale based on scroll direction
+        double prevScale = scale;
+        // Change the scale based on scroll direction. Each step zooms by the same factor, so zooming stays usable
+        // far out
+        scale *= Math.pow(ZOOM_STEP, -e.getWheelRotation());
         scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale)); // Clamp the scale factor
 
+        // Sprites and chunks rendered for the previous zoom level won't be drawn again
+        if (scale != prevScale) clearRenderCaches();
+
         repaint(); // Repaint the viewport
     }
 
@@ -505,6 +1165,8 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
         if (SwingUtilities.isMiddleMouseButton(e) || SwingUtilities.isRightMouseButton(e)) {
             prevPoint = e.getPoint(); // Store the mouse's current position
         } else if (SwingUtilities.isLeftMouseButton(e)) {
+            finishStroke(); // In case the previous stroke's release was missed
+
             if (EDITOR.mode == EditorMode.SELECT) {
                 selectTile(e.getPoint());
             } else {
@@ -524,7 +1186,9 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
             xOffset = 0;
             yOffset = 0;
 
-            repaint(); // Repaint the viewport
+            repaintMoved(); // Repaint the viewport
+        } else if (SwingUtilities.isLeftMouseButton(e)) {
+            finishStroke();
         }
     }
 
@@ -544,7 +1208,7 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
             xOffset = e.getPoint().x - prevPoint.x;
             yOffset = e.getPoint().y - prevPoint.y;
 
-            repaint(); // Repaint the viewport
+            repaintMoved(); // Repaint the viewport
         } else if (SwingUtilities.isLeftMouseButton(e)) {
             paintTile(e.getPoint());
         }
@@ -571,4 +1235,225 @@ public class LevelCanvas extends JPanel implements MouseWheelListener, MouseList
             ctrlSelect = false;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * A brush stroke which painted or erased cells on a single layer.
+     */
+    private class StrokeEdit implements Edit {
+        private final Layer layer;
+        private final CellDelta delta;
+
+        private StrokeEdit(Layer layer, CellDelta delta) {
+            this.layer = layer;
+            this.delta = delta;
+        }
+
+        @Override
+        public void undo() {
+            apply(false);
+        }
+
+        @Override
+        public void redo() {
+            apply(true);
+        }
+
+        /**
+         * Sets every changed cell to its value from before or after the stroke.
+         */
+        private void apply(boolean after) {
+            int layerIndex = layers.indexOf(layer);
+
+            for (int i = 0; i < delta.size(); i++) {
+                int x = delta.getX(i);
+                int y = delta.getY(i);
+
+                int index = after ? delta.getAfter(i) : delta.getBefore(i);
+                layer.set(x, y, index);
+                if (journal != null) journal.setCell(layerIndex, x, y, index);
+            }
+
+            updateCells(layerIndex, delta);
+
+            // Show the layer which was changed
+            if (currentLayer != layerIndex) {
+                currentLayer = layerIndex;
+                fireLayersChanged();
+            }
+        }
+
+        @Override
+        public long getSize() {
+            return delta.getSize();
+        }
+    }
+
+    /**
+     * The addition or removal of a layer.
+     */
+    private class LayerEdit implements Edit {
+        private final Layer layer;
+        private final int index;
+        private final boolean added;
+
+        /**
+         * The size of the layer when the edit was made. The layer keeps changing (and loading or unloading chunks)
+         * while it's part of the level, but the history needs the same size when the edit is removed as when it was
+         * added.
+         */
+        private final long size;
+
+        private LayerEdit(Layer layer, int index, boolean added) {
+            this.layer = layer;
+            this.index = index;
+            this.added = added;
+            size = layer.getSize();
+        }
+
+        @Override
+        public void undo() {
+            if (added) {
+                deleteLayer(index);
+            } else {
+                insertLayer(index, layer);
+            }
+        }
+
+        @Override
+        public void redo() {
+            if (added) {
+                insertLayer(index, layer);
+            } else {
+                deleteLayer(index);
+            }
+        }
+
+        @Override
+        public long getSize() {
+            // The history keeps the layer alive while it isn't part of the level
+            return size;
+        }
+    }
+
+    /**
+     * A change to the size of the level, which may have cropped off cells from each layer.
+     */
+    private class ResizeEdit implements Edit {
+        private final int oldWidth, oldHeight;
+        private final int newWidth, newHeight;
+        private final int xShift, yShift;
+
+        /** The layers of the level, and the cells which were cropped off each of them. */
+        private final ArrayList<Layer> resizedLayers;
+        private final ArrayList<Layer.Cropped> cropped;
+
+        private ResizeEdit(int oldWidth, int oldHeight, int newWidth, int newHeight, int xShift, int yShift) {
+            this.oldWidth = oldWidth;
+            this.oldHeight = oldHeight;
+            this.newWidth = newWidth;
+            this.newHeight = newHeight;
+            this.xShift = xShift;
+            this.yShift = yShift;
+            resizedLayers = new ArrayList<>(layers);
+            cropped = new ArrayList<>();
+        }
+
+        @Override
+        public void undo() {
+            for (int i = 0; i < resizedLayers.size(); i++) {
+                resizedLayers.get(i).resize(oldWidth, oldHeight, -xShift, -yShift);
+                resizedLayers.get(i).restore(cropped.get(i));
+            }
+
+            setSize(oldWidth, oldHeight);
+
+            if (journal != null) {
+                journal.resize(oldWidth, oldHeight, -xShift, -yShift);
+                for (int i = 0; i < resizedLayers.size(); i++) {
+                    journal.restore(i, resizedLayers.get(i), cropped.get(i));
+                }
+            }
+        }
+
+        @Override
+        public void redo() {
+            cropped.clear();
+            for (Layer layer : resizedLayers) {
+                cropped.add(layer.resize(newWidth, newHeight, xShift, yShift));
+            }
+
+            setSize(newWidth, newHeight);
+            if (journal != null) journal.resize(newWidth, newHeight, xShift, yShift);
+        }
+
+        /**
+         * Updates the size of the level's grid and re-renders every layer.
+         */
+        private void setSize(int newWidth, int newHeight) {
+            width = newWidth;
+            height = newHeight;
+
+            markAllDirty();
+
+            repaint();
+        }
+
+        @Override
+        public long getSize() {
+            long size = 0;
+            for (Layer.Cropped chunks : cropped) {
+                size += chunks.getSize();
+            }
+
+            return size;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the level to a file on a background thread, showing its progress and allowing it to be
+     * cancelled.
+     */
+    private class ExportWorker extends SwingWorker<Void, Void> {
+        private final LevelData level;
+        private final File file;
+        private final ProgressMonitor monitor;
+
+        private ExportWorker(LevelData level, File file) {
+            this.level = level;
+            this.file = file;
+
+            monitor = new ProgressMonitor(LevelCanvas.this, "Exporting " + file.getName(), null, 0, 100);
+            addPropertyChangeListener(e -> {
+                if (!"progress".equals(e.getPropertyName())) return;
+
+                if (monitor.isCanceled()) {
+                    cancel(true);
+                } else {
+                    monitor.setProgress((Integer) e.getNewValue());
+                }
+            });
+        }
+
+        @Override
+        protected Void doInBackground() throws IOException {
+            LevelWriter.write(level, file.toPath(), this::setProgress);
+            return null;
+        }
+
+        @Override
+        protected void done() {
+            monitor.close();
+            if (isCancelled()) return;
+
+            try {
+                get();
+            } catch (InterruptedException ignored) {
+            } catch (ExecutionException e) {
+                JOptionPane.showMessageDialog(null,
+                        "Unable to export " + file.getName() + ":\n" + e.getCause().getMessage(),
+                        "Error", JOptionPane.ERROR_MESSAGE
+                );
+            }
+        }
+    }
+}
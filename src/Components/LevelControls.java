@@ -13,6 +13,14 @@ public class LevelControls extends JPanel {
     private JButton addLayerButton, removeLayerButton;
 
     private JComboBox<String> layersDropdown;
+
+    /** The controls for how the current layer is shown. */
+    private JCheckBox layerVisibleBox;
+    private JSlider layerOpacitySlider;
+
+    /** Whether the layers dropdown is being repopulated, during which its selection changes should be ignored. */
+    private boolean refreshingLayers;
+
     private final EditorWindow EDITOR;
     private final LevelCanvas CANVAS;
 
@@ -34,12 +42,31 @@ public class LevelControls extends JPanel {
         layersDropdown = new JComboBox<>();
         layersDropdown.setBackground(EDITOR.BUTTON_COLOR);
         layersDropdown.addActionListener(e -> {
+            if (refreshingLayers) return;
             if (CANVAS.currentLayer == layersDropdown.getSelectedIndex()) return;
 
+            // The other layers are already flattened, so switching layers only re-composites them
             CANVAS.currentLayer = layersDropdown.getSelectedIndex();
+            refreshLayerAppearance();
             CANVAS.repaint();
         });
 
+        layerVisibleBox = new JCheckBox("Visible", true);
+        layerVisibleBox.addActionListener(e -> {
+            if (refreshingLayers || (CANVAS.currentLayer < 0)) return;
+
+            CANVAS.setLayerVisible(CANVAS.currentLayer, layerVisibleBox.isSelected());
+        });
+
+        layerOpacitySlider = new JSlider(0, 100, 100);
+        layerOpacitySlider.setToolTipText("Opacity");
+        layerOpacitySlider.setPreferredSize(new Dimension(120, layerOpacitySlider.getPreferredSize().height));
+        layerOpacitySlider.addChangeListener(e -> {
+            if (refreshingLayers || (CANVAS.currentLayer < 0)) return;
+
+            CANVAS.setLayerOpacity(CANVAS.currentLayer, layerOpacitySlider.getValue() / 100f);
+        });
+
         addLayerButton = new JButton("Add Layer");
         addLayerButton.setBackground(EDITOR.BUTTON_COLOR);
         addLayerButton.addActionListener(e -> {
@@ -51,18 +78,18 @@ public class LevelControls extends JPanel {
 
             if (layerName == null || layerName.trim().isEmpty()) return;
 
-            CANVAS.addLayer();
-            layersDropdown.addItem(layerName);
+            CANVAS.addLayer(layerName.trim());
         });
 
         removeLayerButton = new JButton("Remove Layer");
         removeLayerButton.setBackground(EDITOR.BUTTON_COLOR);
         removeLayerButton.addActionListener(e -> {
-            if (CANVAS.currentLayer < 0) return;
-            layersDropdown.removeItemAt(CANVAS.currentLayer);
             CANVAS.removeCurrentLayer();
         });
 
+        // Keep the dropdown in sync with the canvas' layers, which can also change through undo/redo
+        CANVAS.addPropertyChangeListener("layers", e -> refreshLayers());
+
         gc.insets = new Insets(5, 5, 5, 5);
 
         gc.gridy = 0;
@@ -77,5 +104,47 @@ public class LevelControls extends JPanel {
         gc.gridy = 2;
         gc.gridwidth = 2;
         add(layersDropdown, gc);
+
+        gc.gridy = 3;
+        gc.gridwidth = 1;
+        add(layerVisibleBox, gc);
+        add(layerOpacitySlider, gc);
+
+        refreshLayerAppearance();
+    }
+
+    /**
+     * Repopulates the layers dropdown with the canvas' layers and selects the current layer.
+     */
+    private void refreshLayers() {
+        refreshingLayers = true;
+
+        layersDropdown.removeAllItems();
+        for (String name : CANVAS.getLayerNames()) {
+            layersDropdown.addItem(name);
+        }
+        layersDropdown.setSelectedIndex(CANVAS.currentLayer);
+
+        refreshingLayers = false;
+
+        refreshLayerAppearance();
+    }
+
+    /**
+     * Updates the visibility and opacity controls to match the current layer.
+     */
+    private void refreshLayerAppearance() {
+        refreshingLayers = true;
+
+        boolean hasLayer = CANVAS.currentLayer >= 0;
+        layerVisibleBox.setEnabled(hasLayer);
+        layerOpacitySlider.setEnabled(hasLayer);
+
+        if (hasLayer) {
+            layerVisibleBox.setSelected(CANVAS.isLayerVisible(CANVAS.currentLayer));
+            layerOpacitySlider.setValue(Math.round(CANVAS.getLayerOpacity(CANVAS.currentLayer) * 100));
+        }
+
+        refreshingLayers = false;
     }
 }
@@ -0,0 +1,189 @@
+package Components;
+
+import Rendering.SpriteCache;
+import Rendering.TextureAtlas;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.Arrays;
+
+/**
+ * A grid of a tileset's sprites which the user can pick from. The whole grid is a single component: only the cells
+ * within the visible area are painted, straight from the tileset's atlas, and clicks are mapped to cells by their
+ * coordinates, so its cost doesn't grow with the number of sprites.
+ */
+public class SpritePalette extends JComponent implements Scrollable {
+    /** The color of the outline around the selected sprite. */
+    private static final Color SELECTION_COLOR = new Color(255, 200, 0);
+
+    /** The number of cells shown in each direction before the palette has to be scrolled. */
+    private static final int VISIBLE_CELLS = 4;
+
+    /** The atlas which the sprites are drawn from. */
+    private final TextureAtlas atlas;
+
+    /** The atlas pages scaled to the size of the cells. */
+    private final SpriteCache iconCache;
+
+    /** The sprite index shown in each cell, stored as {@code y * columns + x}. Is -1 for empty cells. */
+    private final int[] cells;
+
+    /** The cell each sprite is shown in. Is -1 for sprites which aren't shown. */
+    private final int[] positions;
+
+    private final int columns;
+    private final int rows;
+
+    /** The width/height of each cell (in pixels). */
+    private final int cellSize;
+
+    /** The index of the selected sprite. */
+    private int selected;
+
+    /**
+     * Instantiates a palette showing the given sprites at their positions in the tileset image.
+     *
+     * @param atlas The atlas which the sprites are drawn from.
+     * @param iconCache The atlas pages scaled to the size of the cells.
+     * @param positions The position of each sprite in the grid, stored as {@code y * columns + x}. Sprites with a
+     *                  negative position aren't shown.
+     * @param columns The number of columns in the grid.
+     * @param rows The number of rows in the grid.
+     * @param cellSize The width/height of each cell (in pixels).
+     */
+    public SpritePalette(TextureAtlas atlas, SpriteCache iconCache, int[] positions, int columns, int rows,
+                         int cellSize) {
+        this.atlas = atlas;
+        this.iconCache = iconCache;
+        this.columns = columns;
+        this.rows = rows;
+        this.cellSize = cellSize;
+        this.positions = positions;
+        selected = 0;
+
+        cells = new int[columns * rows];
+        Arrays.fill(cells, -1);
+        for (int spriteIndex = 0; spriteIndex < positions.length; spriteIndex++) {
+            if (positions[spriteIndex] >= 0) cells[positions[spriteIndex]] = spriteIndex;
+        }
+
+        setOpaque(true);
+        setPreferredSize(new Dimension(columns * cellSize, rows * cellSize));
+
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                int spriteIndex = spriteAt(e.getX(), e.getY());
+                if (spriteIndex < 0) return;
+
+                setSelected(spriteIndex);
+            }
+        });
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g;
+
+        Rectangle clip = g2.getClipBounds();
+        if (clip == null) clip = new Rectangle(0, 0, getWidth(), getHeight());
+
+        g2.setColor(getBackground());
+        g2.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+        // Only the cells which overlap the area being repainted are drawn
+        int startX = Math.max(0, clip.x / cellSize);
+        int startY = Math.max(0, clip.y / cellSize);
+        int endX = Math.min(columns - 1, (clip.x + clip.width - 1) / cellSize);
+        int endY = Math.min(rows - 1, (clip.y + clip.height - 1) / cellSize);
+
+        for (int y = startY; y <= endY; y++) {
+            for (int x = startX; x <= endX; x++) {
+                int spriteIndex = cells[y * columns + x];
+                if (spriteIndex < 0) continue;
+
+                atlas.draw(g2, spriteIndex, x * cellSize, y * cellSize, cellSize, iconCache, this);
+
+                if (spriteIndex == selected) {
+                    g2.setColor(SELECTION_COLOR);
+                    g2.drawRect(x * cellSize, y * cellSize, cellSize - 1, cellSize - 1);
+                    g2.drawRect(x * cellSize + 1, y * cellSize + 1, cellSize - 3, cellSize - 3);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param x The x coordinate within the palette.
+     * @param y The y coordinate within the palette.
+     * @return The index of the sprite at the given coordinates, or -1 if there isn't one.
+     */
+    public int spriteAt(int x, int y) {
+        if ((x < 0) || (y < 0)) return -1;
+
+        int column = x / cellSize;
+        int row = y / cellSize;
+        if ((column >= columns) || (row >= rows)) return -1;
+
+        return cells[row * columns + column];
+    }
+
+    /**
+     * @return The index of the selected sprite.
+     */
+    public int getSelected() {
+        return selected;
+    }
+
+    /**
+     * Selects a sprite, repainting only the cells whose outline changed.
+     *
+     * @param spriteIndex The index of the sprite to select.
+     */
+    public void setSelected(int spriteIndex) {
+        if (spriteIndex == selected) return;
+
+        repaintSprite(selected);
+        selected = spriteIndex;
+        repaintSprite(selected);
+    }
+
+    private void repaintSprite(int spriteIndex) {
+        if ((spriteIndex < 0) || (spriteIndex >= positions.length) || (positions[spriteIndex] < 0)) return;
+
+        int cell = positions[spriteIndex];
+        repaint((cell % columns) * cellSize, (cell / columns) * cellSize, cellSize, cellSize);
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return new Dimension(
+                Math.min(columns, VISIBLE_CELLS) * cellSize, Math.min(rows, VISIBLE_CELLS) * cellSize
+        );
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return cellSize;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        int extent = (orientation == SwingConstants.VERTICAL) ? visibleRect.height : visibleRect.width;
+
+        // Scroll by whole cells, keeping one cell of the previous view visible
+        return Math.max(cellSize, (extent / cellSize - 1) * cellSize);
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return false;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return false;
+    }
+}
@@ -1,110 +1,83 @@
 package Components;
 
+import Rendering.SpriteCache;
+import Rendering.TextureAtlas;
+import Rendering.TilesetSlicer;
 import Serial.Tile;
+import Serial.TilesetData;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.util.Arrays;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.function.IntConsumer;
 
 /**
- * An object which contains a grid of buttons for each tile in a tileset image.
+ * An object which contains a scrollable grid of every tile in a tileset image.
  */
 public class Tileset extends JPanel {
     /** The array of all tiles from the tileset. */
     private Tile[] tiles;
 
+    /** The atlas which all non-empty sprites of the tileset are packed into. */
+    private final TextureAtlas atlas;
+
+    /** The atlas pages scaled to the size of the palette's cells. */
+    private final SpriteCache iconCache;
+
+    /** The component which shows the sprites and tracks which one is selected. */
+    private final SpritePalette palette;
+
     private int tileSize;
     private final int ROWS;
     private final int COLUMNS;
-    private int currentTile;
     private String tilesetID;
 
     /**
-     * Instantiates a tileset object containing all tiles of a specified size.
+     * Instantiates a tileset object showing every sprite of a sliced tileset image.
      *
-     * @param tileSize The size of each tile in the tileset.
-     * @param image The source image of the tileset.
+     * @param sheet The sliced tileset image.
      * @param tilesetID The ID of the tileset.
      */
-    public Tileset(int tileSize, BufferedImage image, String tilesetID) {
-        this.tileSize = tileSize;
-        currentTile = 0;
+    public Tileset(Sheet sheet, String tilesetID) {
+        TilesetData data = sheet.data;
+        tileSize = data.tileSize;
         this.tilesetID = tilesetID;
 
-        // Create a container for the tile buttons
-        JPanel buttonContainer = new JPanel();
-        buttonContainer.setLayout(new GridBagLayout());
-        GridBagConstraints gc = new GridBagConstraints();
-
-        // Create empty array of tiles
-        ROWS = image.getHeight() / tileSize;
-        COLUMNS = image.getWidth() / tileSize;
-        tiles = new Tile[ROWS * COLUMNS];
-
-        // Iterate over all tiles/sub-images
-        int spriteIndex = 0;
-        for (int y = 0; y < ROWS; y++) {
-            for (int x = 0; x < COLUMNS; x++) {
-                BufferedImage subImage = image.getSubimage(x * tileSize, y * tileSize, tileSize, tileSize);
-
-                // Check if the sub-image is empty
-                boolean empty = true;
-                for (int pixX = 0; (pixX < tileSize) && empty; pixX++) {
-                    for (int pixY = 0; pixY < tileSize; pixY++) {
-                        int alpha = (subImage.getRGB(pixX, pixY)>>24)&0xff;
-                        if (alpha != 0) {
-                            empty = false;
-                            break;
-                        }
-                    }
-                }
-
-                if (empty) continue; // If the sub-image was empty, continue to the next one
-
-                tiles[spriteIndex] = new Tile(subImage, spriteIndex, "tilesetID");
-
-                // Set the position of the tile button in the grid
-                gc.gridx = x;
-                gc.gridy = y;
-
-                // Create button for the current tile
-                JButton tileButton = new JButton();
-                tileButton.setContentAreaFilled(false);
-                tileButton.setIcon(new ImageIcon(tiles[spriteIndex].getSprite().getScaledInstance(
-                        tileSize * 2, tileSize * 2, Image.SCALE_FAST
-                        ))
-                );
-
-                int finalI = spriteIndex;
-                tileButton.addActionListener(e -> {
-                    currentTile = finalI;
-                });
-
-                // Set the button size to be double the size of the sprite
-                tileButton.setPreferredSize(new Dimension(tileSize * 2, tileSize * 2));
-
-                buttonContainer.add(tileButton, gc); // Add the tile button to the container of all tile buttons
-
-                spriteIndex++;
+        ROWS = data.rows;
+        COLUMNS = data.columns;
+
+        atlas = data.atlas;
+        iconCache = sheet.iconCache;
+        tiles = new Tile[data.positions.length];
+
+        // Identical sprites are only stored and shown once. Each duplicate keeps its sprite index, so that levels
+        // which use it stay valid, but maps to the tile of its first copy, so that it shares one palette entry.
+        int[] shownPositions = new int[tiles.length];
+        for (int spriteIndex = 0; spriteIndex < tiles.length; spriteIndex++) {
+            if (data.originals[spriteIndex] != spriteIndex) {
+                tiles[spriteIndex] = tiles[data.originals[spriteIndex]];
+                shownPositions[spriteIndex] = -1;
+                continue;
             }
-        }
 
-        // If there were some tiles in the image which were completely empty, cull them from the end of the array.
-        if (spriteIndex != ROWS * COLUMNS) {
-            tiles = Arrays.copyOf(tiles, spriteIndex);
+            tiles[spriteIndex] = new Tile(atlas.getSprite(spriteIndex), spriteIndex, tilesetID, atlas);
+            shownPositions[spriteIndex] = data.positions[spriteIndex];
         }
 
-        // Using a scroll pane bc it allows us to resize the tool panel.
-        // TODO: figure out how to actually let it scroll.
-        JScrollPane scrollPane = new JScrollPane(buttonContainer);
-        add(scrollPane);
+        // A single component draws every sprite, at double the size of the sprite
+        palette = new SpritePalette(atlas, iconCache, shownPositions, COLUMNS, ROWS, tileSize * 2);
+
+        setLayout(new BorderLayout());
+        add(new JScrollPane(palette), BorderLayout.CENTER);
 
         revalidate();
         repaint();
     }
 
     public Tile getCurrentTile() {
+        int currentTile = palette.getSelected();
         if (currentTile >= 0 && currentTile < tiles.length) {
             return tiles[currentTile];
         }
@@ -113,7 +86,26 @@ public class Tileset extends JPanel {
     }
 
     public int getCurrentTileIndex() {
-        return currentTile;
+        return palette.getSelected();
+    }
+
+    /**
+     * @param spriteIndex The index of the sprite in the tileset.
+     * @return The tile with the given sprite, or null if there isn't one.
+     */
+    public Tile getTile(int spriteIndex) {
+        if (spriteIndex >= 0 && spriteIndex < tiles.length) {
+            return tiles[spriteIndex];
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The ID of the tileset.
+     */
+    public String getID() {
+        return tilesetID;
     }
 
     @Override
@@ -121,4 +113,98 @@ public class Tileset extends JPanel {
         return (tilesetID);
     }
 
-}
\ No newline at end of file
+    /**
+     * The sprites of a tileset image, sliced out of the image and packed into an atlas. Slicing doesn't touch any
+     * Swing components, so it can be done in the background before the tileset itself is created.
+     */
+    public static final class Sheet {
+        /** The sliced tileset image. */
+        private final TilesetData data;
+
+        /** The atlas pages scaled to the size of the palette's cells. */
+        private final SpriteCache iconCache;
+
+        private Sheet(TilesetData data, SpriteCache iconCache) {
+            this.data = data;
+            this.iconCache = iconCache;
+        }
+
+        /**
+         * Slices the non-empty sprites out of a tileset image, packs them into an atlas and scales the atlas to the
+         * size of the palette's cells. Stops early if the current thread is interrupted.
+         *
+         * @param tileSize The size of each tile in the tileset.
+         * @param image The source image of the tileset.
+         * @param progress The listener notified of the percentage of the slicing which is done.
+         * @return The sliced tileset image.
+         * @throws InterruptedIOException Thrown if the current thread was interrupted.
+         */
+        public static Sheet slice(int tileSize, BufferedImage image, IntConsumer progress)
+                throws InterruptedIOException {
+            int rows = image.getHeight() / tileSize;
+            int columns = image.getWidth() / tileSize;
+
+            // Empty tiles are skipped
+            int[] positions = TilesetSlicer.findSprites(image, tileSize);
+            checkInterrupted();
+            progress.accept(25);
+
+            int[] originals = TilesetSlicer.findOriginals(image, tileSize, positions);
+            checkInterrupted();
+            progress.accept(50);
+
+            ArrayList<BufferedImage> sprites = new ArrayList<>(positions.length);
+            for (int position : positions) {
+                sprites.add(image.getSubimage(
+                        (position % columns) * tileSize, (position / columns) * tileSize, tileSize, tileSize
+                ));
+            }
+
+            // Pack all non-empty sprites into a single atlas, which every tile and button draws from
+            TextureAtlas atlas = new TextureAtlas(tileSize, sprites, originals);
+            checkInterrupted();
+            progress.accept(75);
+
+            return load(new TilesetData(tileSize, rows, columns, positions, originals, atlas), 75, progress);
+        }
+
+        /**
+         * Scales the atlas of an already sliced tileset image (e.g., one loaded from a cache) to the size of the
+         * palette's cells. Stops early if the current thread is interrupted.
+         *
+         * @param data The sliced tileset image.
+         * @param progress The listener notified of the percentage of the loading which is done.
+         * @return The sliced tileset image.
+         * @throws InterruptedIOException Thrown if the current thread was interrupted.
+         */
+        public static Sheet load(TilesetData data, IntConsumer progress) throws InterruptedIOException {
+            return load(data, 0, progress);
+        }
+
+        private static Sheet load(TilesetData data, int startProgress, IntConsumer progress)
+                throws InterruptedIOException {
+            TextureAtlas atlas = data.atlas;
+
+            // Scale the pages for the palette now, rather than the first time the tileset is shown
+            SpriteCache iconCache = new SpriteCache();
+            for (int page = 0; page < atlas.getPageCount(); page++) {
+                iconCache.get(atlas, page, data.tileSize * 2);
+                checkInterrupted();
+                progress.accept(startProgress + (100 - startProgress) * (page + 1) / atlas.getPageCount());
+            }
+
+            return new Sheet(data, iconCache);
+        }
+
+        /**
+         * @return The sliced tileset image, e.g., to be cached.
+         */
+        public TilesetData getData() {
+            return data;
+        }
+
+        private static void checkInterrupted() throws InterruptedIOException {
+            if (Thread.interrupted()) throw new InterruptedIOException("Tileset import was cancelled");
+        }
+    }
+}
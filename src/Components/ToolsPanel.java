@@ -1,15 +1,32 @@
 package Components;
 
 import Core.EditorWindow;
+import Serial.Tile;
+import Serial.TilesetCache;
+import Serial.TilesetData;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
 
 /**
  * A JPanel which contains controls for the level editor and all tilesets' sprites.
@@ -28,6 +45,17 @@ public class ToolsPanel extends JPanel {
     /** The index of the currently selected tileset. */
     private int currentTileset;
 
+    /** The directory holding the sliced tilesets and the list of imported tilesets. */
+    public static final Path TILESET_CACHE_DIRECTORY = Paths.get(
+            System.getProperty("user.home"), ".level-editor", "tilesets"
+    );
+
+    /** The sliced tilesets which have been imported before. Is null if the cache couldn't be opened. */
+    private TilesetCache cache;
+
+    /** The IDs of the imported tilesets which are being loaded. */
+    private final HashSet<String> loading;
+
     private final EditorWindow EDITOR;
 
     /**
@@ -39,6 +67,13 @@ public class ToolsPanel extends JPanel {
         setLayout(new GridBagLayout());
         tilesets = new ArrayList<>();
         currentTileset = -1; // Indicates there is no tileset
+        loading = new HashSet<>();
+
+        try {
+            cache = new TilesetCache(TILESET_CACHE_DIRECTORY);
+        } catch (IOException e) {
+            System.err.println("Error: unable to open the tileset cache: " + e.getMessage());
+        }
 
         // Make the file chooser only accept .png and .bmp files.
         fileChooser = new JFileChooser();
@@ -48,7 +83,7 @@ public class ToolsPanel extends JPanel {
         );
         fileChooser.setFileFilter(filter);
 
-        tilesetPanel = new JPanel();
+        tilesetPanel = new JPanel(new BorderLayout()); // Lets the tileset's scroll pane fill the panel
 
         tilesetDropdown = new JComboBox<>(); // TODO: Make it so dropdown is populated when loading from file
         tilesetDropdown.setBackground(EDITOR.BUTTON_COLOR);
@@ -112,39 +147,69 @@ public class ToolsPanel extends JPanel {
     }
 
     /**
-     * Generates a new tileset from a user-specified file. Splices sprites from the image at a specified interval.
+     * Generates a new tileset from a user-specified file. Splices sprites from the image at a specified interval. The
+     * image is read and sliced in the background, so several tilesets can be imported at once without blocking the
+     * editor, and each import can be cancelled from its progress dialog.
      *
-     * @throws IOException Thrown if the image is unable to be read from the user-specified file.
+     * @param onImported Called on the event dispatch thread once the new tileset has been added.
      */
-    public void createNewTileset() throws IOException {
+    public void createNewTileset(Runnable onImported) {
         int returnVal = fileChooser.showOpenDialog(getParent());
         if (returnVal != JFileChooser.APPROVE_OPTION) return;
 
         // Read the file as an image
         File file = fileChooser.getSelectedFile();
-        BufferedImage image = ImageIO.read(file);
+        new ReadWorker(file, onImported).execute();
+    }
 
-//        int tileSize = getValidTileSize(image); // Get valid user input for the size of each tile.
-//
-//        if (tileSize == -1) return; // If the user quits the prompt, end the import process.
+    /**
+     * Loads every tileset which has been imported before, from the tileset cache where possible.
+     *
+     * @param onLoaded Called on the event dispatch thread each time a tileset has been added.
+     */
+    public void loadImportedTilesets(Runnable onLoaded) {
+        if (cache == null) return;
 
-        // Add the new tileset to the arraylist of tilesets
-//        addTileset(new Tileset(tileSize, image, "tilesets.size()"));
-        Tileset tileset = generateValidTileset(image);
-        if (tileset == null) return;
+        for (TilesetCache.Entry entry : cache.getEntries()) {
+            loadImportedTileset(entry.id, onLoaded);
+        }
+    }
 
-        addTileset(tileset);
-        currentTileset = tilesets.size() - 1;
+    /**
+     * Loads the tilesets with the given IDs which have been imported before but aren't loaded yet, from the tileset
+     * cache where possible.
+     *
+     * @param tilesetIDs The IDs of the tilesets, e.g., those used by a level.
+     * @param onLoaded Called on the event dispatch thread each time a tileset has been added.
+     */
+    public void loadImportedTilesets(Collection<String> tilesetIDs, Runnable onLoaded) {
+        for (String tilesetID : tilesetIDs) {
+            loadImportedTileset(tilesetID, onLoaded);
+        }
+    }
+
+    private void loadImportedTileset(String tilesetID, Runnable onLoaded) {
+        if ((cache == null) || loading.contains(tilesetID) || (findTileset(tilesetID) != null)) return;
+
+        TilesetCache.Entry entry = cache.getEntry(tilesetID);
+        if (entry == null) return;
+
+        loading.add(tilesetID);
+        new LoadWorker(entry, onLoaded).execute();
     }
 
     /**
-     * Requests a valid tile size from the user based on the input image.
+     * Requests a valid tile size and name from the user based on the input image, then slices the image into a new
+     * tileset in the background.
      *
      * @param image The BufferedImage object read from the user-specified file.
-     * @return The size of each tile from the tileset. Is -1 if the user cancels.
+     * @param source The user-specified file.
+     * @param hash The hash of the file's contents.
+     * @param attributes The attributes of the file, read before its contents were hashed.
+     * @param onImported Called on the event dispatch thread once the new tileset has been added.
      */
-    private Tileset generateValidTileset(BufferedImage image) {
-
+    private void generateValidTileset(BufferedImage image, Path source, String hash, BasicFileAttributes attributes,
+                                      Runnable onImported) {
         // Create panel which will contain content for the JOptionPane
         JPanel importPanel = new JPanel();
         importPanel.setLayout(new GridBagLayout());
@@ -197,7 +262,7 @@ public class ToolsPanel extends JPanel {
             );
 
             // If the user exits the window, quit the import process.
-            if (decision != JOptionPane.OK_OPTION) return null;
+            if (decision != JOptionPane.OK_OPTION) return;
 
             // Try to parse the tile size from user input.
             val = -1;
@@ -219,7 +284,10 @@ public class ToolsPanel extends JPanel {
             break;
         }
 
-        return new Tileset(tileSize, image, nameField.getText().trim());
+        TilesetCache.Entry entry = new TilesetCache.Entry(
+                nameField.getText().trim(), source, tileSize, hash, attributes
+        );
+        new SliceWorker(entry, image, onImported).execute();
     }
 
     public Tileset getCurrentTileset() {
@@ -228,10 +296,35 @@ public class ToolsPanel extends JPanel {
         return tilesets.get(currentTileset);
     }
 
+    /**
+     * Finds a tile from one of the imported tilesets.
+     *
+     * @param tilesetID The ID of the tile's tileset.
+     * @param spriteIndex The index of the tile's sprite in its tileset.
+     * @return The tile, or null if no imported tileset has that ID or sprite.
+     */
+    public Tile findTile(String tilesetID, int spriteIndex) {
+        Tileset tileset = findTileset(tilesetID);
+
+        return (tileset != null) ? tileset.getTile(spriteIndex) : null;
+    }
+
+    /**
+     * @param tilesetID The ID of a tileset.
+     * @return The imported tileset with the given ID, or null if there isn't one.
+     */
+    private Tileset findTileset(String tilesetID) {
+        for (Tileset tileset : tilesets) {
+            if (tileset.getID().equals(tilesetID)) return tileset;
+        }
+
+        return null;
+    }
+
     private void setTileset(int index) {
         currentTileset = Math.max(Math.min(index, tilesets.size()), 0);
         tilesetPanel.removeAll();
-        tilesetPanel.add(tilesets.get(index));
+        tilesetPanel.add(tilesets.get(index), BorderLayout.CENTER);
         revalidate();
         repaint();
     }
@@ -245,4 +338,325 @@ public class ToolsPanel extends JPanel {
 
         setTileset(tilesets.size() - 1);
     }
-}
\ No newline at end of file
+
+    /**
+     * Reads a tileset image in the background, then asks the user how to slice it.
+     */
+    private class ReadWorker extends SwingWorker<BufferedImage, Void> {
+        private final File file;
+        private final Runnable onImported;
+        private final ProgressMonitor monitor;
+
+        /** The hash and attributes of the file. Set in the background before the image is decoded. */
+        private String hash;
+        private BasicFileAttributes attributes;
+
+        private ReadWorker(File file, Runnable onImported) {
+            this.file = file;
+            this.onImported = onImported;
+
+            monitor = new ProgressMonitor(ToolsPanel.this, "Reading " + file.getName(), null, 0, 100);
+            addPropertyChangeListener(e -> {
+                if (!"progress".equals(e.getPropertyName())) return;
+
+                if (monitor.isCanceled()) {
+                    cancel(true);
+                } else {
+                    monitor.setProgress((Integer) e.getNewValue());
+                }
+            });
+        }
+
+        @Override
+        protected BufferedImage doInBackground() throws IOException {
+            // The attributes are read first, so that a change made while the file is read is noticed next time
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+            // The file is only read once, both to hash it for the tileset cache and to decode it
+            byte[] content = Files.readAllBytes(file.toPath());
+            hash = TilesetCache.hash(content);
+
+            return decode(content, this::isCancelled, this::setProgress);
+        }
+
+        @Override
+        protected void done() {
+            monitor.close();
+            if (isCancelled()) return;
+
+            try {
+                generateValidTileset(get(), file.toPath(), hash, attributes, onImported);
+            } catch (InterruptedException ignored) {
+            } catch (ExecutionException e) {
+                JOptionPane.showMessageDialog(null,
+                        "Unable to read " + file.getName() + ":\n" + e.getCause().getMessage(),
+                        "Error", JOptionPane.ERROR_MESSAGE
+                );
+            }
+        }
+    }
+
+    /**
+     * Decodes an image, reporting the progress of the decoding.
+     *
+     * @param content The contents of the image file.
+     * @param cancelled Returns whether to stop decoding.
+     * @param progress The listener notified of the percentage of the image which is decoded.
+     * @return The decoded image.
+     * @throws IOException Thrown if the image couldn't be decoded.
+     */
+    private static BufferedImage decode(byte[] content, BooleanSupplier cancelled, IntConsumer progress)
+            throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(content))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) throw new IOException("Unsupported image format");
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                reader.addIIOReadProgressListener(new ProgressListener(cancelled, progress));
+
+                BufferedImage image = reader.read(0);
+                if (image == null) throw new IOException("Unable to decode the image");
+
+                return image;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Loads a sliced tileset from the cache. Called from background threads.
+     *
+     * @return The sliced tileset, or null if it isn't cached or couldn't be loaded.
+     */
+    private TilesetData loadCached(String hash, int tileSize) {
+        if (cache == null) return null;
+
+        try {
+            return cache.load(hash, tileSize);
+        } catch (IOException e) {
+            // A damaged cache file is replaced once the tileset has been sliced again
+            System.err.println("Error: unable to load cached tileset: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores a sliced tileset in the cache. Called from background threads.
+     */
+    private void storeCached(String hash, TilesetData data) {
+        if (cache == null) return;
+
+        try {
+            cache.store(hash, data);
+        } catch (IOException e) {
+            System.err.println("Error: unable to cache tileset: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds a tileset to the cache's list of imported tilesets, so that it's loaded again next time.
+     */
+    private void register(TilesetCache.Entry entry) {
+        if (cache == null) return;
+
+        try {
+            cache.register(entry);
+        } catch (IOException e) {
+            System.err.println("Error: unable to save the list of imported tilesets: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reports the progress of an image reader, and stops it once the reading is cancelled.
+     */
+    private static class ProgressListener implements IIOReadProgressListener {
+        private final BooleanSupplier cancelled;
+        private final IntConsumer progress;
+
+        private ProgressListener(BooleanSupplier cancelled, IntConsumer progress) {
+            this.cancelled = cancelled;
+            this.progress = progress;
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            if (cancelled.getAsBoolean()) {
+                source.abort();
+            } else {
+                progress.accept(Math.max(0, Math.min(100, (int) percentageDone)));
+            }
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {}
+
+        @Override
+        public void sequenceComplete(ImageReader source) {}
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {}
+
+        @Override
+        public void imageComplete(ImageReader source) {}
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {}
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {}
+
+        @Override
+        public void readAborted(ImageReader source) {}
+    }
+
+    /**
+     * Slices a tileset image in the background (or loads it from the cache if it has been sliced before), then adds
+     * the new tileset to the panel.
+     */
+    private class SliceWorker extends SwingWorker<Tileset.Sheet, Void> {
+        private final TilesetCache.Entry entry;
+        private final BufferedImage image;
+        private final Runnable onImported;
+        private final ProgressMonitor monitor;
+
+        private SliceWorker(TilesetCache.Entry entry, BufferedImage image, Runnable onImported) {
+            this.entry = entry;
+            this.image = image;
+            this.onImported = onImported;
+
+            monitor = new ProgressMonitor(ToolsPanel.this, "Importing " + entry.id, null, 0, 100);
+            addPropertyChangeListener(e -> {
+                if (!"progress".equals(e.getPropertyName())) return;
+
+                if (monitor.isCanceled()) {
+                    cancel(true);
+                } else {
+                    monitor.setProgress((Integer) e.getNewValue());
+                }
+            });
+        }
+
+        @Override
+        protected Tileset.Sheet doInBackground() throws IOException {
+            TilesetData cached = loadCached(entry.hash, entry.tileSize);
+            if (cached != null) return Tileset.Sheet.load(cached, this::setProgress);
+
+            Tileset.Sheet sheet = Tileset.Sheet.slice(entry.tileSize, image, this::setProgress);
+            storeCached(entry.hash, sheet.getData());
+
+            return sheet;
+        }
+
+        @Override
+        protected void done() {
+            monitor.close();
+            if (isCancelled()) return;
+
+            try {
+                // Swing components can only be created on the event dispatch thread
+                addTileset(new Tileset(get(), entry.id));
+                register(entry);
+                onImported.run();
+            } catch (InterruptedException ignored) {
+            } catch (ExecutionException e) {
+                JOptionPane.showMessageDialog(null,
+                        "Unable to import " + entry.id + ":\n" + e.getCause().getMessage(),
+                        "Error", JOptionPane.ERROR_MESSAGE
+                );
+            }
+        }
+    }
+
+    /**
+     * Loads a tileset which has been imported before. The sliced tileset is loaded from the cache unless its image
+     * has changed since it was sliced, in which case the image is sliced and cached again. The image is only hashed
+     * to find out whether it has changed if its size or modification time has.
+     */
+    private class LoadWorker extends SwingWorker<Tileset.Sheet, Void> {
+        private final TilesetCache.Entry entry;
+        private final Runnable onLoaded;
+
+        /** The entry with the hash of the image as it was loaded. Set in the background. */
+        private TilesetCache.Entry loaded;
+
+        /** Whether the image's sprites may be numbered differently than when it was last sliced. */
+        private boolean remapped;
+
+        private LoadWorker(TilesetCache.Entry entry, Runnable onLoaded) {
+            this.entry = entry;
+            this.onLoaded = onLoaded;
+        }
+
+        @Override
+        protected Tileset.Sheet doInBackground() throws IOException {
+            // If the image is gone, the tileset can still be loaded from the cache as it was last sliced
+            BasicFileAttributes attributes = Files.exists(entry.source)
+                    ? Files.readAttributes(entry.source, BasicFileAttributes.class)
+                    : null;
+
+            if ((attributes == null) || entry.isUnchanged(attributes)) {
+                loaded = entry;
+
+                TilesetData cached = loadCached(entry.hash, entry.tileSize);
+                if (cached != null) return Tileset.Sheet.load(cached, progress -> { });
+
+                if (attributes == null) throw new IOException("No such file: " + entry.source);
+            }
+
+            byte[] content = Files.readAllBytes(entry.source);
+            loaded = new TilesetCache.Entry(
+                    entry.id, entry.source, entry.tileSize, TilesetCache.hash(content), attributes
+            );
+
+            TilesetData cached = loadCached(loaded.hash, entry.tileSize);
+            if (cached != null) return Tileset.Sheet.load(cached, progress -> { });
+
+            BufferedImage image = decode(content, this::isCancelled, progress -> { });
+            Tileset.Sheet sheet = Tileset.Sheet.slice(entry.tileSize, image, progress -> { });
+            storeCached(loaded.hash, sheet.getData());
+
+            // Sprites are numbered by the positions of the image's non-empty tiles, so levels placed with the old
+            // image show different sprites if the new one has its non-empty tiles in other places
+            if (!loaded.hash.equals(entry.hash)) {
+                TilesetData previous = loadCached(entry.hash, entry.tileSize);
+                remapped = (previous == null) || !Arrays.equals(previous.positions, sheet.getData().positions);
+            }
+
+            return sheet;
+        }
+
+        @Override
+        protected void done() {
+            loading.remove(entry.id);
+            if (isCancelled()) return;
+
+            try {
+                Tileset.Sheet sheet = get();
+
+                // The tileset may have been imported again while it was loading
+                if (findTileset(entry.id) != null) return;
+
+                addTileset(new Tileset(sheet, entry.id));
+                if (loaded != entry) register(loaded);
+                onLoaded.run();
+
+                if (remapped) {
+                    JOptionPane.showMessageDialog(null,
+                            "The image of tileset " + entry.id + " has changed since it was imported, and its tiles "
+                                    + "may now be numbered differently.\nLevels using it may show the wrong tiles.",
+                            "Warning", JOptionPane.WARNING_MESSAGE
+                    );
+                }
+            } catch (InterruptedException ignored) {
+            } catch (ExecutionException e) {
+                System.err.println("Error: unable to load tileset " + entry.id + ": " + e.getCause().getMessage());
+            }
+        }
+    }
+}
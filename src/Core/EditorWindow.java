@@ -7,8 +7,11 @@ import javax.swing.*;
 import javax.swing.plaf.basic.BasicSplitPaneDivider;
 import javax.swing.plaf.basic.BasicSplitPaneUI;
 import java.awt.*;
+import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
-import java.io.IOException;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.Collection;
 
 /**
  * The frame for the window that comprises the entire level editor application.
@@ -51,7 +54,7 @@ public class EditorWindow extends JFrame {
     /** Open/Exit options in the file menu button dropdown. */
     private JMenuItem openFile, importTileset, exportLevel, exit;
 
-    private JMenuItem resizeLevel;
+    private JMenuItem resizeLevel, undo, redo;
 
     public EditorMode mode;
 
@@ -144,26 +147,26 @@ public class EditorWindow extends JFrame {
 
         // Create and add menu items to the "File" menu
         openFile = new JMenuItem("Open file");
+        openFile.addActionListener(e -> {
+            levelCanvas.openLevelFile();
+        });
 
         importTileset = new JMenuItem("Import tileset");
         importTileset.addActionListener(e -> {
-            try {
-                sidePanel.createNewTileset();
-            } catch (IOException ex) {
-                throw new RuntimeException(ex);
-            }
+            // The new tileset may be used by the open level
+            sidePanel.createNewTileset(levelCanvas::resolveTiles);
         });
 
         exportLevel = new JMenuItem("Export Level");
         exportLevel.addActionListener(e -> {
-            try {
-                levelCanvas.exportLevelFile();
-            } catch (IOException ex) {
-                throw new RuntimeException(ex);
-            }
+            levelCanvas.exportLevelFile();
         });
 
         exit = new JMenuItem("Exit");
+        exit.addActionListener(e -> {
+            // Closes the window the same way as its close button, so that the editor shuts down normally
+            dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING));
+        });
 
         fileMenu.add(openFile);
         fileMenu.add(importTileset);
@@ -175,6 +178,20 @@ public class EditorWindow extends JFrame {
             levelCanvas.resizeCanvas();
         });
 
+        undo = new JMenuItem("Undo");
+        undo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK));
+        undo.addActionListener(e -> {
+            levelCanvas.undo();
+        });
+
+        redo = new JMenuItem("Redo");
+        redo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK));
+        redo.addActionListener(e -> {
+            levelCanvas.redo();
+        });
+
+        editMenu.add(undo);
+        editMenu.add(redo);
         editMenu.add(resizeLevel);
 
         menuBar.add(fileMenu);
@@ -186,6 +203,18 @@ public class EditorWindow extends JFrame {
         pack(); // Removes any unnecessary space
 
         setVisible(true); // After adding everything, make it visible.
+
+        // Load the tilesets imported in previous sessions, which the restored level may use
+        sidePanel.loadImportedTilesets(levelCanvas::resolveTiles);
+
+        // Offer to restore the previous session's level, then autosave every edit until the window is closed
+        levelCanvas.startAutosave();
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                levelCanvas.dispose();
+            }
+        });
     }
 
     /**
@@ -211,6 +240,26 @@ public class EditorWindow extends JFrame {
         };
     }
 
+    /**
+     * Loads the tilesets with the given IDs if they have been imported before but aren't loaded yet.
+     *
+     * @param tilesetIDs The IDs of the tilesets, e.g., those used by a level.
+     */
+    public void loadTilesets(Collection<String> tilesetIDs) {
+        sidePanel.loadImportedTilesets(tilesetIDs, levelCanvas::resolveTiles);
+    }
+
+    /**
+     * Finds a tile from one of the imported tilesets.
+     *
+     * @param tilesetID The ID of the tile's tileset.
+     * @param spriteIndex The index of the tile's sprite in its tileset.
+     * @return The tile, or null if no imported tileset has that ID or sprite.
+     */
+    public Tile findTile(String tilesetID, int spriteIndex) {
+        return sidePanel.findTile(tilesetID, spriteIndex);
+    }
+
     public Tile getCurrentTile() {
         Tileset tileset = sidePanel.getCurrentTileset();
         if (tileset == null) return null;
@@ -0,0 +1,343 @@
+package Core;
+
+import Serial.Chunk;
+import Serial.Layer;
+import Serial.LevelData;
+import Serial.LevelFormat;
+import Serial.LevelReader;
+import Serial.LevelWriter;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A command line tool for processing many level files at once without opening the editor. Runs headless, so it
+ * doesn't need a display. Files are processed in parallel by a fixed number of workers, and each file is opened
+ * lazily, so only a bounded number of its chunks are in memory at once.
+ * <pre>
+ * usage: LevelTool [--jobs N] [--level N] command files...
+ *   convert OUTPUT_DIR FILES...   Rewrites each file in the current format into the output directory
+ *   recompress FILES...           Rewrites each file in place at the given compression level
+ *   validate FILES...             Decodes every chunk of each file and reports the files which are malformed
+ *   stats FILES...                Prints the size, layers, chunks and tiles of each file
+ * </pre>
+ * Directories are searched recursively for level files. When converting, each file keeps its path relative to the
+ * directory it was found in (or just its name, if it was given directly), and two files which would be written to the
+ * same output file are rejected. Exits with 0 if every file was processed successfully, 1 if any file failed, or 2 if
+ * the arguments are invalid.
+ */
+public class LevelTool {
+    /** The maximum number of unchanged chunks each worker keeps in memory at once. */
+    private static final int CHUNK_CAPACITY = 1024;
+
+    private LevelTool() {
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs the tool.
+     *
+     * @param args The command line arguments.
+     * @return The exit code.
+     */
+    public static int run(String[] args) {
+        // Make sure nothing tries to connect to a display
+        System.setProperty("java.awt.headless", "true");
+
+        int jobs = Runtime.getRuntime().availableProcessors();
+        int compression = LevelWriter.DEFAULT_COMPRESSION;
+
+        // Options
+        int i = 0;
+        try {
+            for (; (i < args.length) && args[i].startsWith("--"); i += 2) {
+                if (i + 1 >= args.length) return usage("Missing value for " + args[i]);
+
+                if (args[i].equals("--jobs")) {
+                    jobs = Integer.parseInt(args[i + 1]);
+                    if (jobs < 1) return usage("Invalid number of jobs " + jobs);
+                } else if (args[i].equals("--level")) {
+                    compression = Integer.parseInt(args[i + 1]);
+                    if ((compression < 0) || (compression > 9)) {
+                        return usage("Invalid compression level " + compression);
+                    }
+                } else {
+                    return usage("Unknown option " + args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            return usage("Invalid number " + args[i + 1]);
+        }
+
+        if (i >= args.length) return usage("Missing command");
+        String command = args[i++];
+
+        // Commands
+        Task task;
+        final int level = compression;
+
+        // The level files, each mapped to its path relative to the directory it was found in
+        LinkedHashMap<Path, Path> files = new LinkedHashMap<>();
+        Path outputDirectory = null;
+
+        switch (command) {
+            case "convert":
+                if (i >= args.length) return usage("Missing output directory");
+                Path output = Paths.get(args[i++]);
+                try {
+                    Files.createDirectories(output);
+                } catch (IOException e) {
+                    System.err.println("Error: unable to create output directory: " + e.getMessage());
+                    return 2;
+                }
+
+                task = file -> convert(file, output.resolve(files.get(file)), level);
+                outputDirectory = output;
+                break;
+            case "recompress":
+                task = file -> convert(file, file, level);
+                break;
+            case "validate":
+                task = LevelTool::validate;
+                break;
+            case "stats":
+                task = LevelTool::stats;
+                break;
+            default:
+                return usage("Unknown command " + command);
+        }
+
+        try {
+            findLevelFiles(args, i, files);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 2;
+        }
+        if (files.isEmpty()) return usage("No level files given");
+
+        // Files are converted in parallel, so two of them writing the same output file would silently overwrite
+        // each other
+        if (outputDirectory != null) {
+            HashMap<Path, Path> targets = new HashMap<>();
+            for (Map.Entry<Path, Path> entry : files.entrySet()) {
+                Path target = outputDirectory.resolve(entry.getValue()).toAbsolutePath().normalize();
+                Path other = targets.put(target, entry.getKey());
+                if (other != null) {
+                    return usage(other + " and " + entry.getKey() + " would both be written to " + target);
+                }
+            }
+        }
+
+        return process(new ArrayList<>(files.keySet()), task, jobs);
+    }
+
+    /**
+     * Runs a task on every file using a fixed number of workers, printing the result of each file in order.
+     *
+     * @return The exit code.
+     */
+    private static int process(List<Path> files, Task task, int jobs) {
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(jobs, files.size()));
+
+        ArrayList<Future<String>> results = new ArrayList<>();
+        for (Path file : files) {
+            results.add(workers.submit(() -> task.run(file)));
+        }
+        workers.shutdown();
+
+        int failed = 0;
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                System.out.println(files.get(i) + ": " + results.get(i).get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                System.out.println(files.get(i) + ": FAILED: " + describe(cause));
+                failed++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                workers.shutdownNow();
+                return 1;
+            }
+        }
+
+        if (failed > 0) System.err.println(failed + " of " + files.size() + " files failed");
+
+        return (failed > 0) ? 1 : 0;
+    }
+
+    /**
+     * Rewrites a level file in the current format, creating the output's directory if needed. The output may be the
+     * same file as the input, in which case the whole level is decoded into memory before the file is replaced.
+     */
+    private static String convert(Path input, Path output, int compression) throws IOException {
+        long before = Files.size(input);
+
+        Path parent = output.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+
+        // A level opened lazily keeps reading chunks from its file while it's written, so it can't replace that
+        // file (which Windows doesn't allow while the file is mapped anyway)
+        boolean inPlace = Files.exists(output) && Files.isSameFile(input, output);
+        LevelData level = inPlace ? LevelReader.read(input) : LevelReader.open(input, CHUNK_CAPACITY);
+        LevelWriter.write(level, output, compression, progress -> { });
+
+        return "OK (" + before + " -> " + Files.size(output) + " bytes)";
+    }
+
+    /**
+     * Decodes every chunk of a level file.
+     */
+    private static String validate(Path file) throws IOException {
+        LevelData level = LevelReader.open(file, CHUNK_CAPACITY);
+
+        long chunks = 0;
+        for (Layer layer : level.layers) {
+            for (long key : layer.getChunkKeys()) {
+                try {
+                    layer.getChunk(Layer.keyX(key), Layer.keyY(key));
+                } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+                    throw new IOException(
+                            "Malformed chunk " + Layer.keyX(key) + ", " + Layer.keyY(key)
+                                    + " in layer \"" + layer.getName() + "\": " + describe(e), e
+                    );
+                }
+                chunks++;
+            }
+        }
+
+        return "OK (" + chunks + " chunks)";
+    }
+
+    /**
+     * Summarizes the contents of a level file.
+     */
+    private static String stats(Path file) throws IOException {
+        short[] header = readHeader(file);
+        LevelData level = LevelReader.open(file, CHUNK_CAPACITY);
+
+        long chunks = 0;
+        long tiles = 0;
+        for (Layer layer : level.layers) {
+            for (long key : layer.getChunkKeys()) {
+                Chunk chunk = layer.getChunk(Layer.keyX(key), Layer.keyY(key));
+                chunks++;
+                tiles += chunk.count();
+            }
+        }
+
+        HashSet<String> tilesets = new HashSet<>();
+        for (int i = 1; i < level.palette.size(); i++) {
+            tilesets.add(level.palette.get(i).getTilesetID());
+        }
+
+        boolean compressed = (header[1] & LevelFormat.FLAG_DEFLATE) != 0;
+
+        return "\"" + level.levelName + "\", version " + header[0] + (compressed ? " (compressed)" : "")
+                + ", " + Files.size(file) + " bytes, " + level.width + "x" + level.height + " tiles, "
+                + level.layers.length + " layers, " + chunks + " chunks, " + tiles + " placed tiles, "
+                + (level.palette.size() - 1) + " palette entries from " + tilesets.size() + " tilesets";
+    }
+
+    /**
+     * @return The version and flags from the header of a level file.
+     */
+    private static short[] readHeader(Path file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(8);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (header.hasRemaining() && (channel.read(header) >= 0)) {
+                // Keep reading until the header is full or the file ends
+            }
+        }
+        header.flip();
+
+        if ((header.remaining() < 8) || (header.getInt() != LevelFormat.MAGIC)) {
+            throw new IOException("Not a level file");
+        }
+
+        return new short[]{header.getShort(), header.getShort()};
+    }
+
+    /**
+     * Collects the level files given on the command line, searching directories recursively. Each file is mapped to
+     * its path relative to the directory it was found in, or to its name if it was given directly.
+     */
+    private static void findLevelFiles(String[] args, int start, Map<Path, Path> files) throws IOException {
+        for (int i = start; i < args.length; i++) {
+            Path path = Paths.get(args[i]);
+
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> walk = Files.walk(path)) {
+                    for (Path file : walk.filter(LevelTool::isLevelFile).sorted().collect(Collectors.toList())) {
+                        files.put(file, path.relativize(file));
+                    }
+                }
+            } else if (Files.exists(path)) {
+                files.put(path, path.getFileName());
+            } else {
+                throw new IOException("No such file: " + path);
+            }
+        }
+    }
+
+    private static boolean isLevelFile(Path path) {
+        String name = path.getFileName().toString();
+        return Files.isRegularFile(path) && (name.endsWith(".lvl") || name.endsWith(".level"));
+    }
+
+    /**
+     * @return The exception's message, or the name of its class if it doesn't have one (e.g., a buffer underflow).
+     */
+    private static String describe(Throwable e) {
+        return (e.getMessage() != null) ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    /**
+     * Prints an error and the tool's usage.
+     *
+     * @return The exit code for invalid arguments.
+     */
+    private static int usage(String error) {
+        System.err.println("Error: " + error);
+        System.err.println("usage: LevelTool [--jobs N] [--level N] command files...");
+        System.err.println("  convert OUTPUT_DIR FILES...   Rewrites each file in the current format into OUTPUT_DIR");
+        System.err.println("  recompress FILES...           Rewrites each file in place at the compression level");
+        System.err.println("  validate FILES...             Checks that every chunk of each file can be decoded");
+        System.err.println("  stats FILES...                Prints the size, layers, chunks and tiles of each file");
+
+        return 2;
+    }
+
+    /**
+     * An operation run on a single level file.
+     */
+    private interface Task {
+        /**
+         * @param file The level file.
+         * @return A summary of the result.
+         * @throws IOException Thrown if the file couldn't be processed.
+         */
+        String run(Path file) throws IOException;
+    }
+}
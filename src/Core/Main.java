@@ -2,6 +2,12 @@ package Core;
 
 public class Main {
     public static void main(String[] args) {
+        // Any arguments run the headless command line tool instead of the editor
+        if (args.length > 0) {
+            LevelTool.main(args);
+            return;
+        }
+
         // Desired window resolution
         int width = 800;
         int height = 600;
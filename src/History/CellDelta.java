@@ -0,0 +1,127 @@
+package History;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A compact record of the cells changed on a single layer, such as by one stroke of the brush. Each cell is only
+ * recorded once, keeping its value from before its first change and after its last change.
+ */
+public class CellDelta {
+    /** The number of bytes used to record each cell. */
+    private static final int BYTES_PER_CELL = 16;
+
+    /** The coordinates of each changed cell. */
+    private int[] xs, ys;
+
+    /** The palette index of each changed cell before and after the change. */
+    private int[] before, after;
+
+    /** The number of changed cells. */
+    private int size;
+
+    /** Maps each recorded cell to its slot in the arrays. Only kept while the delta is still being recorded. */
+    private HashMap<Long, Integer> slots;
+
+    /**
+     * Instantiates an empty delta.
+     */
+    public CellDelta() {
+        xs = new int[16];
+        ys = new int[16];
+        before = new int[16];
+        after = new int[16];
+        size = 0;
+        slots = new HashMap<>();
+    }
+
+    /**
+     * Records a change to a cell. If the cell was already changed, only its new value is updated.
+     *
+     * @param x The x coordinate of the cell.
+     * @param y The y coordinate of the cell.
+     * @param previous The palette index of the cell before the change.
+     * @param index The palette index of the cell after the change.
+     */
+    public void record(int x, int y, int previous, int index) {
+        long key = ((long) x << 32) | (y & 0xFFFFFFFFL);
+
+        Integer slot = slots.get(key);
+        if (slot != null) {
+            after[slot] = index;
+            return;
+        }
+
+        if (size == xs.length) {
+            int capacity = size * 2;
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            before = Arrays.copyOf(before, capacity);
+            after = Arrays.copyOf(after, capacity);
+        }
+
+        xs[size] = x;
+        ys[size] = y;
+        before[size] = previous;
+        after[size] = index;
+        slots.put(key, size);
+        size++;
+    }
+
+    /**
+     * Stops recording and shrinks the delta to its final size.
+     */
+    public void finish() {
+        slots = null;
+        xs = Arrays.copyOf(xs, size);
+        ys = Arrays.copyOf(ys, size);
+        before = Arrays.copyOf(before, size);
+        after = Arrays.copyOf(after, size);
+    }
+
+    /**
+     * @return The number of changed cells.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i The slot of the cell.
+     * @return The x coordinate of the cell.
+     */
+    public int getX(int i) {
+        return xs[i];
+    }
+
+    /**
+     * @param i The slot of the cell.
+     * @return The y coordinate of the cell.
+     */
+    public int getY(int i) {
+        return ys[i];
+    }
+
+    /**
+     * @param i The slot of the cell.
+     * @return The palette index of the cell before the change.
+     */
+    public int getBefore(int i) {
+        return before[i];
+    }
+
+    /**
+     * @param i The slot of the cell.
+     * @return The palette index of the cell after the change.
+     */
+    public int getAfter(int i) {
+        return after[i];
+    }
+
+    /**
+     * @return The approximate number of bytes the delta takes up in memory.
+     */
+    public long getSize() {
+        return (long) xs.length * BYTES_PER_CELL;
+    }
+}
@@ -0,0 +1,21 @@
+package History;
+
+/**
+ * A single change to the level which can be undone and redone.
+ */
+public interface Edit {
+    /**
+     * Reverts the level to how it was before the edit.
+     */
+    void undo();
+
+    /**
+     * Re-applies the edit after it has been undone.
+     */
+    void redo();
+
+    /**
+     * @return The approximate number of bytes the edit takes up in memory.
+     */
+    long getSize();
+}
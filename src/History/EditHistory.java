@@ -0,0 +1,131 @@
+package History;
+
+import java.util.ArrayDeque;
+
+/**
+ * The undo/redo history of the level. The total size of all recorded edits is capped by a memory budget, and the
+ * oldest edits are forgotten first once it is exceeded.
+ */
+public class EditHistory {
+    /** The default memory budget of the history, in bytes. */
+    public static final long DEFAULT_BUDGET = 32L * 1024 * 1024;
+
+    /** The edits which can be undone, with the most recent at the front. */
+    private final ArrayDeque<Edit> undoStack;
+
+    /** The edits which can be redone, with the most recently undone at the front. */
+    private final ArrayDeque<Edit> redoStack;
+
+    /** The maximum number of bytes the recorded edits are allowed to take up. */
+    private long budget;
+
+    /** The approximate number of bytes currently taken up by the recorded edits. */
+    private long usedBytes;
+
+    /**
+     * Instantiates an empty history with the default memory budget.
+     */
+    public EditHistory() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Instantiates an empty history with a specified memory budget.
+     *
+     * @param budget The maximum number of bytes the recorded edits are allowed to take up.
+     */
+    public EditHistory(long budget) {
+        this.budget = budget;
+        undoStack = new ArrayDeque<>();
+        redoStack = new ArrayDeque<>();
+        usedBytes = 0;
+    }
+
+    /**
+     * Records an edit which has just been applied. Discards every edit that could have been redone.
+     *
+     * @param edit The applied edit.
+     */
+    public void push(Edit edit) {
+        for (Edit undone : redoStack) {
+            usedBytes -= undone.getSize();
+        }
+        redoStack.clear();
+
+        undoStack.push(edit);
+        usedBytes += edit.getSize();
+
+        evict();
+    }
+
+    /**
+     * Undoes the most recent edit.
+     *
+     * @return Whether there was an edit to undo.
+     */
+    public boolean undo() {
+        Edit edit = undoStack.poll();
+        if (edit == null) return false;
+
+        edit.undo();
+        redoStack.push(edit);
+
+        return true;
+    }
+
+    /**
+     * Redoes the most recently undone edit.
+     *
+     * @return Whether there was an edit to redo.
+     */
+    public boolean redo() {
+        Edit edit = redoStack.poll();
+        if (edit == null) return false;
+
+        edit.redo();
+        undoStack.push(edit);
+
+        return true;
+    }
+
+    /**
+     * Forgets every recorded edit.
+     */
+    public void clear() {
+        undoStack.clear();
+        redoStack.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * Changes the memory budget of the history, forgetting the oldest edits if it is now exceeded.
+     *
+     * @param budget The maximum number of bytes the recorded edits are allowed to take up.
+     */
+    public void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    /**
+     * @return The approximate number of bytes currently taken up by the recorded edits.
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Forgets the oldest edits until the history fits within its memory budget. Edits which could be redone are
+     * forgotten before edits which could be undone.
+     */
+    private void evict() {
+        while ((usedBytes > budget) && !redoStack.isEmpty()) {
+            usedBytes -= redoStack.removeLast().getSize();
+        }
+
+        // Always keep the most recent edit, even if it alone exceeds the budget
+        while ((usedBytes > budget) && (undoStack.size() > 1)) {
+            usedBytes -= undoStack.removeLast().getSize();
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package Rendering;
+
+import Serial.Chunk;
+import Serial.Layer;
+import Serial.Palette;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flattens a range of layers (e.g., every layer below the current layer) into cached images, so that drawing any
+ * number of layers costs about the same as drawing a single one. The level is split into square tiles, each of which
+ * is flattened from the layers' pre-rendered chunks the first time it's drawn, and only flattened again once one of
+ * the layers has changed within it.
+ * <p>
+ * Each tile remembers which layers it holds. If the range of layers grows (e.g., the current layer moves up, so the
+ * layer below it joins the layers below), only the new layers are drawn into the tile, above or beneath what it
+ * already holds. What the tile held before is kept as a snapshot, so that if the range shrinks again, the tile goes
+ * back to the largest snapshot within it rather than being flattened from scratch.
+ */
+public class LayerCompositor {
+    /** The default memory budget of the flattened images, in bytes. */
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    /**
+     * The maximum number of flattened images each tile keeps, so that the range can shrink again (e.g., the current
+     * layer moves back down) without flattening the tile from scratch.
+     */
+    private static final int MAX_SNAPSHOTS = 3;
+
+    /** The width/height of each tile, in number of cells. */
+    private static final int TILE_CELLS = Chunk.SIZE;
+
+    /** The flattened tiles, ordered from least to most recently drawn. */
+    private final LinkedHashMap<Long, CompositeTile> tiles;
+
+    /** The maximum number of bytes the flattened images are allowed to take up. */
+    private final long budget;
+
+    /** Whether the range's top stays put while its bottom moves, rather than the other way around. */
+    private final boolean growsDownward;
+
+    /** The approximate number of bytes currently taken up by the flattened images. */
+    private long usedBytes;
+
+    /** An image which a layer is drawn into before it's blended into a tile. Is null until it's needed. */
+    private BufferedImage scratch;
+
+    /**
+     * Instantiates a compositor with the default memory budget.
+     *
+     * @param growsDownward Whether the range's top stays put while its bottom moves, e.g., the layers above the
+     *                      current layer.
+     */
+    public LayerCompositor(boolean growsDownward) {
+        this(DEFAULT_BUDGET, growsDownward);
+    }
+
+    /**
+     * Instantiates a compositor.
+     *
+     * @param budget The maximum number of bytes the flattened images are allowed to take up.
+     * @param growsDownward Whether the range's top stays put while its bottom moves, e.g., the layers above the
+     *                      current layer.
+     */
+    public LayerCompositor(long budget, boolean growsDownward) {
+        this.budget = budget;
+        this.growsDownward = growsDownward;
+        tiles = new LinkedHashMap<>(64, 0.75f, true);
+        usedBytes = 0;
+    }
+
+    /**
+     * Draws a range of layers flattened together, flattening any tiles which are dirty or don't hold the range yet.
+     *
+     * @param g2 The Graphics2D object to handle the graphics resources.
+     * @param layers The level's layers.
+     * @param renderers The renderers of the level's layers, holding their pre-rendered chunks and visibility.
+     * @param first The index of the bottom layer of the range.
+     * @param end The index after the top layer of the range.
+     * @param palette The palette of the level's tiles.
+     * @param visible The range of visible tiles in grid coordinates.
+     * @param xPos The x coordinate of the level's top-left corner on screen (in pixels).
+     * @param yPos The y coordinate of the level's top-left corner on screen (in pixels).
+     * @param scaledSize The width/height of a tile on screen (in pixels).
+     * @param cache The cache holding the pre-scaled atlas pages.
+     * @param canvas The component which the layers will be drawn on.
+     */
+    public void draw(Graphics2D g2, List<Layer> layers, List<LayerRenderer> renderers, int first, int end,
+                     Palette palette, Rectangle visible, int xPos, int yPos, double scaledSize, SpriteCache cache,
+                     JComponent canvas) {
+        if (visible.isEmpty() || (first >= end)) return;
+
+        int minTileX = visible.x / TILE_CELLS;
+        int minTileY = visible.y / TILE_CELLS;
+        int maxTileX = (visible.x + visible.width - 1) / TILE_CELLS;
+        int maxTileY = (visible.y + visible.height - 1) / TILE_CELLS;
+
+        for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+            for (int tileY = minTileY; tileY <= maxTileY; tileY++) {
+                long key = Layer.key(tileX, tileY);
+                CompositeTile tile = tiles.get(key);
+
+                if (tile == null) {
+                    tile = new CompositeTile();
+                    tiles.put(key, tile);
+                }
+
+                // The on-screen position of the tile, relative to the level's top-left corner
+                int originX = (int) (tileX * TILE_CELLS * scaledSize);
+                int originY = (int) (tileY * TILE_CELLS * scaledSize);
+
+                // Snapshots holding layers outside of the range are dropped, leaving the largest one within it
+                while (!tile.snapshots.isEmpty() && (tile.dirty || !tile.top().isWithin(first, end))) {
+                    usedBytes -= sizeOf(tile.snapshots.remove(tile.snapshots.size() - 1).image);
+                }
+                tile.dirty = false;
+
+                // The tile's cells, plus the cell before it, which may overlap it by a pixel
+                Rectangle cells = new Rectangle(tileX * TILE_CELLS - 1, tileY * TILE_CELLS - 1, TILE_CELLS + 1,
+                        TILE_CELLS + 1).intersection(new Rectangle(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE));
+
+                int width = (int) ((tileX + 1) * TILE_CELLS * scaledSize) - originX;
+                int height = (int) ((tileY + 1) * TILE_CELLS * scaledSize) - originY;
+
+                // A tile flattened from scratch starts from the fixed end of the range, so that its snapshots are the
+                // ones left once the other end moves back
+                int bottom = first;
+                int top = first;
+                if (!tile.snapshots.isEmpty()) {
+                    bottom = tile.top().first;
+                    top = tile.top().end;
+                } else if (growsDownward) {
+                    bottom = end;
+                    top = end;
+                }
+                int remaining = (end - first) - (top - bottom);
+
+                // Layers added to the bottom of the range are drawn beneath what the tile already holds
+                for (int i = bottom - 1; i >= first; i--) {
+                    Snapshot snapshot = extend(tile, i, remaining--, width, height);
+                    flatten(snapshot.image, AlphaComposite.DST_OVER, layers.get(i), renderers.get(i), palette,
+                            cells, originX, originY, scaledSize, cache, canvas);
+                }
+
+                // Layers added to the top of the range are drawn over it
+                for (int i = top; i < end; i++) {
+                    Snapshot snapshot = extend(tile, i, remaining--, width, height);
+                    flatten(snapshot.image, AlphaComposite.SRC_OVER, layers.get(i), renderers.get(i), palette,
+                            cells, originX, originY, scaledSize, cache, canvas);
+                }
+
+                g2.drawImage(tile.top().image, originX + xPos, originY + yPos, canvas);
+            }
+        }
+
+        evict();
+    }
+
+    /**
+     * Adds a layer to a tile's range, keeping what the tile held before as a snapshot unless more layers will be added
+     * after it than there are snapshots to keep.
+     *
+     * @param tile The tile to add the layer to.
+     * @param layer The index of the layer, directly above or below the tile's range.
+     * @param remaining The number of layers still to be added to the tile, including this one.
+     * @param width The width of the tile's images.
+     * @param height The height of the tile's images.
+     * @return The snapshot which the layer should be drawn into.
+     */
+    private Snapshot extend(CompositeTile tile, int layer, int remaining, int width, int height) {
+        if (tile.snapshots.isEmpty()) {
+            BufferedImage image = SpriteCache.createCompatibleImage(width, height);
+            usedBytes += sizeOf(image);
+            tile.snapshots.add(new Snapshot(image, layer, layer + 1));
+            return tile.top();
+        }
+
+        Snapshot top = tile.top();
+        int first = Math.min(top.first, layer);
+        int end = Math.max(top.end, layer + 1);
+
+        if (remaining > MAX_SNAPSHOTS) {
+            top.first = first;
+            top.end = end;
+            return top;
+        }
+
+        // The oldest snapshot's image is reused once the tile holds as many as it's allowed to
+        BufferedImage image;
+        if (tile.snapshots.size() >= MAX_SNAPSHOTS) {
+            image = tile.snapshots.remove(0).image;
+        } else {
+            image = SpriteCache.createCompatibleImage(width, height);
+            usedBytes += sizeOf(image);
+        }
+
+        Graphics2D g2 = image.createGraphics();
+        g2.setComposite(AlphaComposite.Src);
+        g2.drawImage(top.image, 0, 0, null);
+        g2.dispose();
+
+        tile.snapshots.add(new Snapshot(image, first, end));
+        return tile.top();
+    }
+
+    /**
+     * Draws a single layer over or beneath a snapshot's image.
+     */
+    private void flatten(BufferedImage image, int rule, Layer layer, LayerRenderer renderer, Palette palette,
+                         Rectangle cells, int originX, int originY, double scaledSize, SpriteCache cache,
+                         JComponent canvas) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if ((scratch == null) || (scratch.getWidth() < width) || (scratch.getHeight() < height)) {
+            scratch = SpriteCache.createCompatibleImage(width, height);
+        }
+
+        Rectangle visible = cells.intersection(new Rectangle(0, 0, layer.getWidth(), layer.getHeight()));
+
+        Graphics2D g2 = image.createGraphics();
+        renderer.drawBlended(g2, rule, new Rectangle(0, 0, width, height), scratch, layer, palette, visible,
+                -originX, -originY, scaledSize, cache, canvas);
+        g2.dispose();
+    }
+
+    /**
+     * Marks the tile holding a cell as dirty. Should be called whenever a cell of one of the layers in the range
+     * changes.
+     *
+     * @param x The x coordinate of the cell in level coordinates.
+     * @param y The y coordinate of the cell in level coordinates.
+     */
+    public void markDirty(int x, int y) {
+        // A tile may overlap the next tile by a pixel, so the tiles after it are marked too
+        for (int tileX = x / TILE_CELLS; tileX <= (x + 1) / TILE_CELLS; tileX++) {
+            for (int tileY = y / TILE_CELLS; tileY <= (y + 1) / TILE_CELLS; tileY++) {
+                CompositeTile tile = tiles.get(Layer.key(tileX, tileY));
+                if (tile != null) tile.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Marks the tiles holding a range of cells as dirty, e.g., once a chunk of one of the layers in the range has
+     * been re-rendered.
+     *
+     * @param cells The range of cells in level coordinates.
+     */
+    public void markDirty(Rectangle cells) {
+        // A tile may overlap the next tile by a pixel, so the tiles after it are marked too
+        for (int tileX = cells.x / TILE_CELLS; tileX <= (cells.x + cells.width) / TILE_CELLS; tileX++) {
+            for (int tileY = cells.y / TILE_CELLS; tileY <= (cells.y + cells.height) / TILE_CELLS; tileY++) {
+                CompositeTile tile = tiles.get(Layer.key(tileX, tileY));
+                if (tile != null) tile.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Marks every tile as dirty. Used when whole layers in the range have changed, e.g., their visibility.
+     */
+    public void markAllDirty() {
+        for (CompositeTile tile : tiles.values()) {
+            tile.dirty = true;
+        }
+    }
+
+    /**
+     * Removes every flattened image. Should be called whenever the zoom level changes.
+     */
+    public void clear() {
+        tiles.clear();
+        usedBytes = 0;
+        scratch = null;
+    }
+
+    /**
+     * Removes the least recently drawn images until the compositor fits within its memory budget. The tiles' older
+     * snapshots are removed first, and then whole tiles.
+     */
+    private void evict() {
+        for (CompositeTile tile : tiles.values()) {
+            if (usedBytes <= budget) break;
+
+            while ((usedBytes > budget) && (tile.snapshots.size() > 1)) {
+                usedBytes -= sizeOf(tile.snapshots.remove(0).image);
+            }
+        }
+
+        Iterator<Map.Entry<Long, CompositeTile>> iterator = tiles.entrySet().iterator();
+
+        while ((usedBytes > budget) && iterator.hasNext()) {
+            for (Snapshot snapshot : iterator.next().getValue().snapshots) {
+                usedBytes -= sizeOf(snapshot.image);
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return The approximate number of bytes the image's pixels take up.
+     */
+    private static long sizeOf(BufferedImage image) {
+        return (image == null) ? 0 : (long) image.getWidth() * image.getHeight() * 4;
+    }
+
+    /**
+     * A square of the level with a range of layers flattened into it.
+     */
+    private static final class CompositeTile {
+        /**
+         * The tile's flattened images, each holding a range of layers within the next one's range. The last one holds
+         * the range which was last drawn.
+         */
+        private final List<Snapshot> snapshots = new ArrayList<>(MAX_SNAPSHOTS);
+
+        /** Whether any of the layers have changed since the tile was flattened. */
+        private boolean dirty = true;
+
+        /**
+         * @return The snapshot holding the range which was last drawn.
+         */
+        private Snapshot top() {
+            return snapshots.get(snapshots.size() - 1);
+        }
+    }
+
+    /**
+     * A range of layers flattened into an image.
+     */
+    private static final class Snapshot {
+        /** The flattened layers. */
+        private final BufferedImage image;
+
+        /** The range of layers which have been flattened into the image. */
+        private int first, end;
+
+        private Snapshot(BufferedImage image, int first, int end) {
+            this.image = image;
+            this.first = first;
+            this.end = end;
+        }
+
+        /**
+         * @return The number of layers in the range.
+         */
+        private int size() {
+            return end - first;
+        }
+
+        /**
+         * @return Whether the snapshot holds no layers outside of a range.
+         */
+        private boolean isWithin(int first, int end) {
+            return (this.first >= first) && (this.end <= end);
+        }
+    }
+}
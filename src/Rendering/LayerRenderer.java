@@ -0,0 +1,684 @@
+package Rendering;
+
+import Serial.Chunk;
+import Serial.Layer;
+import Serial.Palette;
+import Serial.Tile;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Renders a single layer of the level, and holds whether the layer is shown and how opaque it is. Each of the
+ * layer's chunks is pre-rendered into an offscreen image at the current zoom scale. Chunk images are keyed by the
+ * chunk's storage coordinates, and are positioned on screen using the layer's origin. Chunks are only re-rendered
+ * after they have been marked dirty, so most frames only consist of a few image blits. The chunk images count towards a
+ * memory budget shared with the other layers' renderers, which evicts the least recently drawn chunks of any layer.
+ * <p>
+ * Dirty chunks are rendered in parallel in the background, from a shared copy of the chunk which the layer won't
+ * change. Until a chunk's new image is ready, its previous image is drawn in its place, scaled if the zoom level has
+ * changed since. Once it's ready, the renderer's listener is notified on the event dispatch thread so that the
+ * chunk can be drawn again. Results which are no longer wanted, e.g., because the zoom level or the chunk changed in
+ * the meantime, are discarded.
+ * <p>
+ * Once tiles become too small on screen for their sprites to be made out, each chunk is instead drawn from a pyramid
+ * of images holding the average color of each tile (one pixel per cell), then of each 2x2 block of cells, and so on
+ * down to a single pixel. The pyramid doesn't depend on the zoom level, so it's kept while zooming.
+ */
+public class LayerRenderer {
+    /** Below this width/height of a tile on screen (in pixels), tiles are drawn as their average colors. */
+    public static final double LOD_SIZE = 4;
+
+    /** The pre-rendered chunks. */
+    private final HashMap<Long, ChunkImage> chunks;
+
+    /** The memory budget which the chunk images count towards, which may be shared with other layers' renderers. */
+    private final RenderBudget budget;
+
+    /** Whether the layer is shown. */
+    private boolean visible;
+
+    /** The opacity the layer is drawn with, from 0 (transparent) to 1 (opaque). */
+    private float opacity;
+
+    /** Runs the jobs rendering dirty chunks in the background. */
+    private final Executor executor;
+
+    /** Notified of the cells (in level coordinates) of each chunk which has finished rendering. May be null. */
+    private Consumer<Rectangle> onChunkRendered;
+
+    /**
+     * Instantiates a renderer for a single layer.
+     *
+     * @param budget The memory budget which the chunk images count towards, usually shared by every layer's renderer.
+     * @param executor Runs the jobs rendering dirty chunks in the background, e.g., one created by createExecutor().
+     */
+    public LayerRenderer(RenderBudget budget, Executor executor) {
+        this.budget = budget;
+        this.executor = executor;
+        chunks = new HashMap<>(64);
+        visible = true;
+        opacity = 1;
+    }
+
+    /**
+     * Creates a fixed number of daemon threads to render chunks on, leaving a core free for the event dispatch thread.
+     * The renderers sharing it don't shut it down, so its owner should once they are no longer used.
+     *
+     * @return The executor, which can be shared by every layer's renderer.
+     */
+    public static ExecutorService createExecutor() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Chunk renderer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Draws every chunk that intersects the visible range of tiles, starting to re-render any that are dirty. Must be
+     * called on the event dispatch thread.
+     *
+     * @param g2 The Graphics2D object to handle the graphics resources.
+     * @param layer The layer's grid of palette indices.
+     * @param palette The palette of the level's tiles.
+     * @param visible The range of visible tiles in grid coordinates.
+     * @param xPos The x coordinate of the level's top-left corner on screen (in pixels).
+     * @param yPos The y coordinate of the level's top-left corner on screen (in pixels).
+     * @param scaledSize The width/height of a tile on screen (in pixels).
+     * @param cache The cache holding the pre-scaled atlas pages.
+     * @param canvas The component which the layer will be drawn on.
+     */
+    public void draw(Graphics2D g2, Layer layer, Palette palette, Rectangle visible, int xPos, int yPos,
+                     double scaledSize, SpriteCache cache, JComponent canvas) {
+        if (visible.isEmpty()) return;
+
+        // The range of visible chunks in storage coordinates
+        int minChunkX = (visible.x + layer.getOriginX()) >> Chunk.SHIFT;
+        int minChunkY = (visible.y + layer.getOriginY()) >> Chunk.SHIFT;
+        int maxChunkX = (visible.x + visible.width - 1 + layer.getOriginX()) >> Chunk.SHIFT;
+        int maxChunkY = (visible.y + visible.height - 1 + layer.getOriginY()) >> Chunk.SHIFT;
+
+        // The palette is copied for the chunks rendered in the background, but only if there are any
+        Palette snapshot = null;
+
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkY = minChunkY; chunkY <= maxChunkY; chunkY++) {
+                long key = Layer.key(chunkX, chunkY);
+
+                // Empty chunks aren't stored, so there is nothing to draw
+                if (layer.getChunk(chunkX, chunkY) == null) {
+                    ChunkImage removed = chunks.remove(key);
+                    if (removed != null) {
+                        budget.remove(removed, sizeOf(removed));
+                        cancel(removed);
+                    }
+                    continue;
+                }
+
+                ChunkImage chunk = chunks.get(key);
+
+                if (chunk == null) {
+                    chunk = new ChunkImage(key);
+                    chunks.put(key, chunk);
+                }
+                budget.touch(this, chunk);
+
+                if (scaledSize < LOD_SIZE) {
+                    drawMipmap(g2, layer, palette, chunk, chunkX, chunkY, xPos, yPos, scaledSize, canvas);
+                    continue;
+                }
+
+                if (chunk.dirty && (chunk.job == null)) {
+                    if (snapshot == null) snapshot = new Palette(palette);
+                    submit(chunk, layer, snapshot, chunkX, chunkY, scaledSize, cache);
+                }
+
+                int x = (int) (firstCell(chunkX, layer.getOriginX()) * scaledSize) + xPos;
+                int y = (int) (firstCell(chunkY, layer.getOriginY()) * scaledSize) + yPos;
+
+                if (chunk.image == null) {
+                    // Coming from a lower zoom level, the chunk's average colors are shown until it's rendered
+                    if ((chunk.mips != null) && !chunk.mipsDirty) {
+                        drawMipmap(g2, layer, palette, chunk, chunkX, chunkY, xPos, yPos, scaledSize, canvas);
+                    }
+                } else if (chunk.imageSize == scaledSize) {
+                    g2.drawImage(chunk.image, x, y, canvas);
+                } else {
+                    // The image was rendered at a previous zoom level, so it's scaled until it has been re-rendered
+                    double ratio = scaledSize / chunk.imageSize;
+                    g2.drawImage(
+                            chunk.image, x, y, (int) Math.ceil(chunk.image.getWidth() * ratio),
+                            (int) Math.ceil(chunk.image.getHeight() * ratio), canvas
+                    );
+                }
+            }
+        }
+
+        budget.evict();
+    }
+
+    /**
+     * Draws the layer at its opacity, blending it with what has already been drawn. Neighbouring chunk images overlap
+     * by a pixel, so blending each of them on its own would blend the overlaps twice. Unless the layer is opaque and
+     * drawn over, it's drawn opaque into a scratch image first, and then blended as a whole.
+     *
+     * @param g2 The Graphics2D object to handle the graphics resources.
+     * @param rule The rule to blend the layer with, e.g., AlphaComposite.SRC_OVER or AlphaComposite.DST_OVER.
+     * @param area The area of g2 (in pixels) to draw within.
+     * @param scratch An image at least as large as the area, whose contents may be overwritten.
+     * @param layer The layer's grid of palette indices.
+     * @param palette The palette of the level's tiles.
+     * @param visible The range of visible tiles in grid coordinates.
+     * @param xPos The x coordinate of the level's top-left corner on screen (in pixels).
+     * @param yPos The y coordinate of the level's top-left corner on screen (in pixels).
+     * @param scaledSize The width/height of a tile on screen (in pixels).
+     * @param cache The cache holding the pre-scaled atlas pages.
+     * @param canvas The component which the layer will be drawn on.
+     */
+    public void drawBlended(Graphics2D g2, int rule, Rectangle area, BufferedImage scratch, Layer layer,
+                            Palette palette, Rectangle visible, int xPos, int yPos, double scaledSize,
+                            SpriteCache cache, JComponent canvas) {
+        if (!this.visible || (opacity <= 0) || area.isEmpty()) return;
+
+        Composite composite = g2.getComposite();
+
+        if ((rule == AlphaComposite.SRC_OVER) && (opacity >= 1)) {
+            g2.setComposite(AlphaComposite.SrcOver);
+            draw(g2, layer, palette, visible, xPos, yPos, scaledSize, cache, canvas);
+            g2.setComposite(composite);
+            return;
+        }
+
+        Graphics2D scratchGraphics = scratch.createGraphics();
+        scratchGraphics.setComposite(AlphaComposite.Clear);
+        scratchGraphics.fillRect(0, 0, area.width, area.height);
+        scratchGraphics.setComposite(AlphaComposite.SrcOver);
+        scratchGraphics.clipRect(0, 0, area.width, area.height);
+        draw(scratchGraphics, layer, palette, visible, xPos - area.x, yPos - area.y, scaledSize, cache, canvas);
+        scratchGraphics.dispose();
+
+        g2.setComposite(AlphaComposite.getInstance(rule, opacity));
+        g2.drawImage(scratch, area.x, area.y, area.x + area.width, area.y + area.height, 0, 0, area.width,
+                area.height, canvas);
+        g2.setComposite(composite);
+    }
+
+    /**
+     * Starts rendering a chunk in the background. The chunk is shared with the job rather than copied, so the layer
+     * copies it before changing it again.
+     */
+    private void submit(ChunkImage chunk, Layer layer, Palette palette, int chunkX, int chunkY, double scaledSize,
+                        SpriteCache cache) {
+        RenderJob job = new RenderJob(
+                layer.shareChunk(chunkX, chunkY), palette,
+                (chunkX << Chunk.SHIFT) - layer.getOriginX(), (chunkY << Chunk.SHIFT) - layer.getOriginY(),
+                layer.getWidth(), layer.getHeight(), scaledSize
+        );
+        chunk.job = job;
+
+        try {
+            executor.execute(() -> {
+                BufferedImage image = null;
+                boolean rendered = false;
+
+                try {
+                    // Jobs cancelled while they were waiting aren't rendered at all
+                    if (!job.cancelled) {
+                        image = render(job, cache);
+                        rendered = true;
+                    }
+                } finally {
+                    // The job is finished even if rendering failed, so that the chunk can be rendered again
+                    BufferedImage result = image;
+                    boolean succeeded = rendered;
+                    SwingUtilities.invokeLater(() -> finish(chunk, job, result, succeeded));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down, so the chunk stays dirty without being rendered
+            chunk.job = null;
+        }
+    }
+
+    /**
+     * Replaces a chunk's image with the one rendered by its job, unless the job has been cancelled since. If the job
+     * failed, the chunk keeps its previous image and stays dirty, so it's submitted again the next time it's drawn.
+     * Called on the event dispatch thread.
+     */
+    private void finish(ChunkImage chunk, RenderJob job, BufferedImage image, boolean rendered) {
+        if (chunk.job != job) return;
+
+        chunk.job = null;
+        if (!rendered) return;
+
+        budget.resize(sizeOf(image) - sizeOf(chunk.image));
+        chunk.image = image;
+        chunk.imageSize = job.scaledSize;
+        chunk.dirty = false;
+
+        budget.evict();
+
+        if (onChunkRendered != null) {
+            onChunkRendered.accept(new Rectangle(job.startX, job.startY, Chunk.SIZE, Chunk.SIZE).intersection(
+                    new Rectangle(0, 0, job.width, job.height)
+            ));
+        }
+    }
+
+    /**
+     * Cancels a chunk's job, if it has one, discarding its result. The chunk is re-rendered the next time it's drawn.
+     */
+    private static void cancel(ChunkImage chunk) {
+        if (chunk.job == null) return;
+
+        chunk.job.cancelled = true;
+        chunk.job = null;
+        chunk.dirty = true;
+    }
+
+    /**
+     * Draws a chunk from its pyramid of average colors, rebuilding the pyramid if it's dirty. The smallest image of
+     * the pyramid which is still at least as large as the chunk on screen is scaled down to it.
+     */
+    private void drawMipmap(Graphics2D g2, Layer layer, Palette palette, ChunkImage chunk, int chunkX, int chunkY,
+                            int xPos, int yPos, double scaledSize, JComponent canvas) {
+        if (chunk.mipsDirty) {
+            BufferedImage[] mips = buildMipmaps(layer, palette, chunkX, chunkY);
+            budget.resize(sizeOf(mips) - sizeOf(chunk.mips));
+            chunk.mips = mips;
+            chunk.mipsDirty = false;
+        }
+
+        if (chunk.mips == null) return;
+
+        // The on-screen area of the whole chunk, including any cells outside the level's bounds
+        int startX = (chunkX << Chunk.SHIFT) - layer.getOriginX();
+        int startY = (chunkY << Chunk.SHIFT) - layer.getOriginY();
+        int left = (int) Math.floor(startX * scaledSize) + xPos;
+        int top = (int) Math.floor(startY * scaledSize) + yPos;
+        int right = (int) Math.floor((startX + Chunk.SIZE) * scaledSize) + xPos;
+        int bottom = (int) Math.floor((startY + Chunk.SIZE) * scaledSize) + yPos;
+
+        int level = 0;
+        while ((level + 1 < chunk.mips.length) && ((Chunk.SIZE >> (level + 1)) >= Chunk.SIZE * scaledSize)) {
+            level++;
+        }
+
+        BufferedImage mip = chunk.mips[level];
+
+        Object interpolation = g2.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2.drawImage(mip, left, top, right, bottom, 0, 0, mip.getWidth(), mip.getHeight(), canvas);
+        g2.setRenderingHint(
+                RenderingHints.KEY_INTERPOLATION,
+                (interpolation != null) ? interpolation : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR
+        );
+    }
+
+    /**
+     * Builds a chunk's pyramid of average colors. The first image holds one pixel per cell, and each following image
+     * is half the size of the one before it, down to a single pixel.
+     *
+     * @return The pyramid, or null if the chunk is empty.
+     */
+    private static BufferedImage[] buildMipmaps(Layer layer, Palette palette, int chunkX, int chunkY) {
+        Chunk chunk = layer.getChunk(chunkX, chunkY);
+
+        // Empty chunks aren't stored, so there is nothing to build
+        if (chunk == null) return null;
+
+        // The level coordinates of the chunk's top-left cell, which may be outside the level's bounds
+        int startX = (chunkX << Chunk.SHIFT) - layer.getOriginX();
+        int startY = (chunkY << Chunk.SHIFT) - layer.getOriginY();
+
+        // Cells outside the level's bounds are left transparent
+        int[] colors = new int[Chunk.SIZE * Chunk.SIZE];
+        for (int y = Math.max(0, -startY); y < Math.min(Chunk.SIZE, layer.getHeight() - startY); y++) {
+            for (int x = Math.max(0, -startX); x < Math.min(Chunk.SIZE, layer.getWidth() - startX); x++) {
+                Tile tile = palette.get(chunk.get(x, y));
+                if (tile != null) colors[y * Chunk.SIZE + x] = tile.getAverageColor();
+            }
+        }
+
+        BufferedImage[] mips = new BufferedImage[Chunk.SHIFT + 1];
+        for (int level = 0, size = Chunk.SIZE; level < mips.length; level++, size >>= 1) {
+            if (level > 0) {
+                // Each pixel is the average of the 2x2 block of pixels beneath it in the previous image
+                int[] previous = colors;
+                colors = new int[size * size];
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        int i = (y * 2) * (size * 2) + x * 2;
+                        colors[y * size + x] = TextureAtlas.averageColor(
+                                previous[i], previous[i + 1], previous[i + size * 2], previous[i + size * 2 + 1]
+                        );
+                    }
+                }
+            }
+
+            mips[level] = SpriteCache.createCompatibleImage(size, size);
+            mips[level].setRGB(0, 0, size, size, colors, 0, size);
+        }
+
+        return mips;
+    }
+
+    /**
+     * Redraws a single tile within its pre-rendered chunk, so that the rest of the chunk doesn't have to be
+     * re-rendered. Should be called whenever a tile is changed.
+     *
+     * @param layer The layer's grid of palette indices.
+     * @param palette The palette of the level's tiles.
+     * @param x The x coordinate of the tile in level coordinates.
+     * @param y The y coordinate of the tile in level coordinates.
+     * @param scaledSize The width/height of a tile on screen (in pixels).
+     * @param cache The cache holding the pre-scaled atlas pages.
+     */
+    public void updateTile(Layer layer, Palette palette, int x, int y, double scaledSize, SpriteCache cache) {
+        int chunkX = (x + layer.getOriginX()) >> Chunk.SHIFT;
+        int chunkY = (y + layer.getOriginY()) >> Chunk.SHIFT;
+
+        ChunkImage chunk = chunks.get(Layer.key(chunkX, chunkY));
+        if (chunk == null) return;
+
+        // The average colors are cheap to rebuild, so they're rebuilt the next time the chunk is drawn
+        chunk.mipsDirty = true;
+
+        // A chunk being rendered in the background was copied before the change, so it has to be rendered again
+        cancel(chunk);
+
+        // Chunks that haven't been rendered yet will include the tile once they are
+        if (chunk.dirty || (chunk.image == null)) return;
+
+        // The on-screen position of the chunk image, relative to the level's top-left corner
+        int originX = (int) (firstCell(chunkX, layer.getOriginX()) * scaledSize);
+        int originY = (int) (firstCell(chunkY, layer.getOriginY()) * scaledSize);
+
+        // The area of the chunk image which belongs to the tile
+        int tileX = (int) (x * scaledSize) - originX;
+        int tileY = (int) (y * scaledSize) - originY;
+        int tileWidth = (int) ((x + 1) * scaledSize) - originX - tileX;
+        int tileHeight = (int) ((y + 1) * scaledSize) - originY - tileY;
+
+        Graphics2D g2 = chunk.image.createGraphics();
+        g2.clipRect(tileX, tileY, tileWidth, tileHeight);
+
+        // Erase whatever was previously drawn there
+        g2.setComposite(AlphaComposite.Clear);
+        g2.fillRect(tileX, tileY, tileWidth, tileHeight);
+        g2.setComposite(AlphaComposite.SrcOver);
+
+        Tile tile = palette.get(layer.get(x, y));
+        if (tile != null) {
+            tile.draw(g2, tileX, tileY, (int) Math.ceil(scaledSize), cache, null);
+        }
+
+        g2.dispose();
+    }
+
+    /**
+     * Marks a single chunk as dirty, so that it's re-rendered the next time it's drawn. Used instead of redrawing each
+     * tile when many tiles of the chunk have changed at once.
+     *
+     * @param chunkX The x coordinate of the chunk in storage coordinates, in number of chunks.
+     * @param chunkY The y coordinate of the chunk in storage coordinates, in number of chunks.
+     */
+    public void markChunkDirty(int chunkX, int chunkY) {
+        ChunkImage chunk = chunks.get(Layer.key(chunkX, chunkY));
+        if (chunk == null) return;
+
+        cancel(chunk);
+        chunk.dirty = true;
+        chunk.mipsDirty = true;
+    }
+
+    /**
+     * Marks every chunk as dirty. Used when the contents or origin of the whole layer have changed.
+     */
+    public void markAllDirty() {
+        for (ChunkImage chunk : chunks.values()) {
+            cancel(chunk);
+            chunk.dirty = true;
+            chunk.mipsDirty = true;
+        }
+    }
+
+    /**
+     * @return Whether the layer is shown.
+     */
+    public boolean isVisible() {
+        return visible;
+    }
+
+    /**
+     * @param visible Whether the layer is shown.
+     */
+    public void setVisible(boolean visible) {
+        this.visible = visible;
+    }
+
+    /**
+     * @param listener Notified on the event dispatch thread of the cells (in level coordinates) of each chunk which
+     *                 has finished rendering in the background, so that they can be drawn again.
+     */
+    public void setOnChunkRendered(Consumer<Rectangle> listener) {
+        onChunkRendered = listener;
+    }
+
+    /**
+     * @return The opacity the layer is drawn with, from 0 (transparent) to 1 (opaque).
+     */
+    public float getOpacity() {
+        return opacity;
+    }
+
+    /**
+     * @param opacity The opacity the layer is drawn with, from 0 (transparent) to 1 (opaque).
+     */
+    public void setOpacity(float opacity) {
+        this.opacity = Math.max(0, Math.min(1, opacity));
+    }
+
+    /**
+     * Marks every chunk image to be re-rendered and discards any which are being rendered. Should be called whenever
+     * the zoom level changes. The previous images are still drawn until they have been re-rendered, and the chunks'
+     * average colors don't depend on the zoom level, so they're kept.
+     */
+    public void clear() {
+        for (ChunkImage chunk : chunks.values()) {
+            cancel(chunk);
+            chunk.dirty = true;
+        }
+    }
+
+    /**
+     * Renders all tiles within a chunk into a new offscreen image. Safe to call from any thread.
+     *
+     * @return The rendered image, or null if the chunk is empty or outside the level's bounds.
+     */
+    private static BufferedImage render(RenderJob job, SpriteCache cache) {
+        Chunk chunk = job.chunk;
+
+        // Empty chunks aren't stored, so there is nothing to render
+        if (chunk == null) return null;
+
+        // The range of the chunk's cells which are within the level's bounds
+        int firstX = Math.max(0, job.startX);
+        int firstY = Math.max(0, job.startY);
+        int endX = Math.min(job.width, job.startX + Chunk.SIZE);
+        int endY = Math.min(job.height, job.startY + Chunk.SIZE);
+
+        if ((firstX >= endX) || (firstY >= endY)) return null;
+
+        // The on-screen position of the chunk image, relative to the level's top-left corner
+        double scaledSize = job.scaledSize;
+        int originX = (int) (firstX * scaledSize);
+        int originY = (int) (firstY * scaledSize);
+        int scaledSizeInt = (int) Math.ceil(scaledSize);
+
+        BufferedImage image = SpriteCache.createCompatibleImage(
+                (int) (endX * scaledSize) - originX + scaledSizeInt,
+                (int) (endY * scaledSize) - originY + scaledSizeInt
+        );
+        Graphics2D g2 = image.createGraphics();
+
+        // Scan row by row, which is the order the cells are stored in
+        for (int y = firstY; y < endY; y++) {
+            if (job.cancelled) break; // The result would be discarded anyway
+
+            for (int x = firstX; x < endX; x++) {
+                Tile tile = job.palette.get(chunk.get(x - job.startX, y - job.startY));
+                if (tile == null) continue;
+
+                tile.draw(
+                        g2, (int) (x * scaledSize) - originX, (int) (y * scaledSize) - originY,
+                        scaledSizeInt, cache, null
+                );
+            }
+        }
+
+        g2.dispose();
+
+        return image;
+    }
+
+    /**
+     * Calculates the first cell of a chunk along one axis which is within the level's bounds. Chunk images start at
+     * this cell.
+     *
+     * @param chunk The coordinate of the chunk in storage coordinates, in number of chunks.
+     * @param origin The layer's origin along the same axis.
+     * @return The level coordinate of the first cell.
+     */
+    private static int firstCell(int chunk, int origin) {
+        return Math.max(0, (chunk << Chunk.SHIFT) - origin);
+    }
+
+    /**
+     * Removes a chunk which its budget has evicted, discarding it if it's being rendered.
+     *
+     * @param chunk The chunk, which belongs to this renderer.
+     * @return The number of bytes the chunk's images took up.
+     */
+    long evict(Object chunk) {
+        ChunkImage evicted = (ChunkImage) chunk;
+        chunks.remove(evicted.key);
+        cancel(evicted);
+
+        return sizeOf(evicted);
+    }
+
+    /**
+     * Removes every chunk image from the budget and discards any which are being rendered. Should be called once the
+     * layer has been removed, as its chunks would otherwise keep taking up part of a shared budget.
+     */
+    public void dispose() {
+        for (ChunkImage chunk : chunks.values()) {
+            budget.remove(chunk, sizeOf(chunk));
+            cancel(chunk);
+        }
+        chunks.clear();
+    }
+
+    /**
+     * @return The approximate number of bytes the image's pixels take up.
+     */
+    private static long sizeOf(BufferedImage image) {
+        return (image == null) ? 0 : (long) image.getWidth() * image.getHeight() * 4;
+    }
+
+    /**
+     * @return The approximate number of bytes the images' pixels take up.
+     */
+    private static long sizeOf(BufferedImage[] images) {
+        long size = 0;
+        if (images != null) {
+            for (BufferedImage image : images) {
+                size += sizeOf(image);
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return The approximate number of bytes the chunk's images take up.
+     */
+    private static long sizeOf(ChunkImage chunk) {
+        return sizeOf(chunk.image) + sizeOf(chunk.mips);
+    }
+
+    /**
+     * A pre-rendered chunk of the layer.
+     */
+    private static final class ChunkImage {
+        /** The key of the chunk within the renderer. */
+        private final long key;
+
+        /** The rendered tiles of the chunk. Is null until the chunk is first rendered. */
+        private BufferedImage image;
+
+        /** The width/height of a tile on screen (in pixels) when the image was rendered. */
+        private double imageSize;
+
+        /** Whether the chunk has changed since it was last rendered. */
+        private boolean dirty = true;
+
+        /** The job rendering the chunk in the background. Is null if the chunk isn't being rendered. */
+        private RenderJob job;
+
+        /** The pyramid of the chunk's average colors, from largest to smallest. Is null until it's first drawn. */
+        private BufferedImage[] mips;
+
+        /** Whether the chunk has changed since its pyramid was last built. */
+        private boolean mipsDirty = true;
+
+        private ChunkImage(long key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * A chunk being rendered in the background, along with the state of the layer it's rendered from.
+     */
+    private static final class RenderJob {
+        /** The chunk's cells, which the layer won't change. Is null if the chunk is empty. */
+        private final Chunk chunk;
+
+        /** A copy of the level's palette. */
+        private final Palette palette;
+
+        /** The level coordinates of the chunk's top-left cell, which may be outside the level's bounds. */
+        private final int startX, startY;
+
+        /** The size of the layer in number of tiles. */
+        private final int width, height;
+
+        /** The width/height of a tile on screen (in pixels). */
+        private final double scaledSize;
+
+        /** Whether the result is no longer wanted, e.g., because the zoom level changed. */
+        private volatile boolean cancelled;
+
+        private RenderJob(Chunk chunk, Palette palette, int startX, int startY, int width, int height,
+                          double scaledSize) {
+            this.chunk = chunk;
+            this.palette = palette;
+            this.startX = startX;
+            this.startY = startY;
+            this.width = width;
+            this.height = height;
+            this.scaledSize = scaledSize;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package Rendering;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A memory budget shared by the pre-rendered chunk images of several layer renderers, so that the memory they take up
+ * doesn't grow with the number of layers. The chunks of every renderer sharing the budget are kept in a single order,
+ * from least to most recently drawn, and the least recently drawn ones are evicted first, whichever layer they belong
+ * to. Must only be used on the event dispatch thread.
+ */
+public class RenderBudget {
+    /** The default memory budget of the pre-rendered chunk images of all layers together, in bytes. */
+    public static final long DEFAULT_BUDGET = 128L * 1024 * 1024;
+
+    /** The chunks of every renderer, mapped to their renderers and ordered from least to most recently drawn. */
+    private final LinkedHashMap<Object, LayerRenderer> chunks;
+
+    /** The maximum number of bytes the chunk images are allowed to take up. */
+    private final long budget;
+
+    /** The approximate number of bytes currently taken up by the chunk images. */
+    private long usedBytes;
+
+    /**
+     * Instantiates a budget with the default size.
+     */
+    public RenderBudget() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Instantiates a budget.
+     *
+     * @param budget The maximum number of bytes the chunk images are allowed to take up.
+     */
+    public RenderBudget(long budget) {
+        this.budget = budget;
+        chunks = new LinkedHashMap<>(256, 0.75f, true);
+        usedBytes = 0;
+    }
+
+    /**
+     * Marks a chunk as the most recently drawn, adding it if it isn't counted towards the budget yet.
+     *
+     * @param renderer The renderer the chunk belongs to.
+     * @param chunk The chunk.
+     */
+    void touch(LayerRenderer renderer, Object chunk) {
+        if (chunks.get(chunk) == null) chunks.put(chunk, renderer);
+    }
+
+    /**
+     * Stops counting a chunk towards the budget, e.g., because it has become empty.
+     *
+     * @param chunk The chunk.
+     * @param bytes The number of bytes the chunk's images took up.
+     */
+    void remove(Object chunk, long bytes) {
+        chunks.remove(chunk);
+        usedBytes -= bytes;
+    }
+
+    /**
+     * Updates the number of bytes taken up, e.g., once a chunk's image has been replaced.
+     *
+     * @param bytes The number of bytes added, or removed if negative.
+     */
+    void resize(long bytes) {
+        usedBytes += bytes;
+    }
+
+    /**
+     * Evicts the least recently drawn chunks, of any renderer, until the images fit within the budget.
+     */
+    void evict() {
+        Iterator<Map.Entry<Object, LayerRenderer>> iterator = chunks.entrySet().iterator();
+
+        while ((usedBytes > budget) && iterator.hasNext()) {
+            Map.Entry<Object, LayerRenderer> entry = iterator.next();
+            iterator.remove();
+            usedBytes -= entry.getValue().evict(entry.getKey());
+        }
+    }
+}
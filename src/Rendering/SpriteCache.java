@@ -0,0 +1,256 @@
+package Rendering;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A least-recently-used cache of pre-scaled texture atlas pages. Scaling is expensive, so each page is only scaled
+ * once per zoom level and then reused every time one of its sprites is drawn. Entries are evicted once the memory
+ * budget is exceeded.
+ * <p>
+ * Chunks are rendered on several threads at once, so looking up a page that's already cached doesn't take any lock.
+ * A missing page is scaled by the first thread which wants it, outside of any lock, while other threads wanting the
+ * same page wait for it.
+ */
+public class SpriteCache {
+    /** The default memory budget of the cache, in bytes. */
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    /** The cached images, including the ones which are still being scaled. */
+    private final ConcurrentHashMap<Key, Entry> images;
+
+    /** The maximum number of bytes the cached images are allowed to take up. */
+    private final long budget;
+
+    /** The approximate number of bytes currently taken up by the cached images. */
+    private final AtomicLong usedBytes;
+
+    /** Advanced whenever an image is added, and used to tell which images were used least recently. */
+    private final AtomicLong clock;
+
+    /**
+     * Instantiates a sprite cache with the default memory budget.
+     */
+    public SpriteCache() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Instantiates a sprite cache with a specified memory budget.
+     *
+     * @param budget The maximum number of bytes the cached images are allowed to take up.
+     */
+    public SpriteCache(long budget) {
+        this.budget = budget;
+        images = new ConcurrentHashMap<>(256);
+        usedBytes = new AtomicLong();
+        clock = new AtomicLong();
+    }
+
+    /**
+     * Returns an atlas page scaled so that each of its sprites has the given size, scaling and caching it first if it
+     * isn't already cached. Can be called from any thread.
+     *
+     * @param atlas The atlas the page belongs to.
+     * @param page The index of the page in the atlas.
+     * @param scaledSize The width/height of each sprite in the scaled page.
+     * @return A display-compatible image of the scaled page.
+     */
+    public BufferedImage get(TextureAtlas atlas, int page, int scaledSize) {
+        Key key = new Key(atlas, page, scaledSize);
+        Entry entry = images.get(key);
+
+        if (entry == null) {
+            Entry added = new Entry(clock.incrementAndGet());
+            entry = images.putIfAbsent(key, added);
+
+            // Only the thread which added the entry scales the page
+            if (entry == null) {
+                BufferedImage source = atlas.getPage(page);
+                try {
+                    BufferedImage image = scale(
+                            source,
+                            source.getWidth() / atlas.getTileSize() * scaledSize,
+                            source.getHeight() / atlas.getTileSize() * scaledSize
+                    );
+                    added.complete(image, usedBytes);
+                } catch (RuntimeException | Error e) {
+                    images.remove(key, added);
+                    added.image.completeExceptionally(e);
+                    throw e;
+                }
+
+                evict(added);
+
+                return added.image.join();
+            }
+        }
+
+        // The clock only advances when an image is added, so most lookups don't write to the shared entry at all
+        long now = clock.get();
+        if (entry.lastUsed != now) entry.lastUsed = now;
+
+        try {
+            return entry.image.join();
+        } catch (CompletionException e) {
+            // Scaling failed on the thread which added the entry, which has removed it again
+            throw new IllegalStateException("Unable to scale atlas page", e.getCause());
+        }
+    }
+
+    /**
+     * Removes every image from the cache. Should be called whenever the zoom level changes.
+     */
+    public void clear() {
+        for (Key key : images.keySet()) {
+            Entry entry = images.remove(key);
+            if (entry != null) entry.release(usedBytes);
+        }
+    }
+
+    /**
+     * Removes the least recently used images until the cache fits within its memory budget. Images which are still
+     * being scaled are kept.
+     *
+     * @param kept The image which was just added, which is kept even if it alone exceeds the budget.
+     */
+    private void evict(Entry kept) {
+        if (usedBytes.get() <= budget) return;
+
+        // Only one thread evicts at a time, while others keep looking up and adding images
+        synchronized (clock) {
+            while (usedBytes.get() > budget) {
+                Map.Entry<Key, Entry> oldest = null;
+
+                for (Map.Entry<Key, Entry> entry : images.entrySet()) {
+                    Entry value = entry.getValue();
+                    if ((value == kept) || !value.image.isDone()) continue;
+
+                    if ((oldest == null) || (value.lastUsed < oldest.getValue().lastUsed)) oldest = entry;
+                }
+
+                if (oldest == null) break;
+                if (images.remove(oldest.getKey(), oldest.getValue())) oldest.getValue().release(usedBytes);
+            }
+        }
+    }
+
+    /**
+     * Creates a scaled copy of an image using nearest-neighbour scaling.
+     *
+     * @param source The image to scale.
+     * @param width The width of the scaled image.
+     * @param height The height of the scaled image.
+     * @return A display-compatible copy of the image at the given size.
+     */
+    private static BufferedImage scale(BufferedImage source, int width, int height) {
+        BufferedImage image = createCompatibleImage(width, height);
+
+        Graphics2D g2 = image.createGraphics();
+        g2.setComposite(AlphaComposite.Src);
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g2.drawImage(source, 0, 0, width, height, null);
+        g2.dispose();
+
+        return image;
+    }
+
+    /**
+     * Creates a translucent image whose format matches the display, so that drawing it doesn't require conversion.
+     *
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return The new, empty image.
+     */
+    public static BufferedImage createCompatibleImage(int width, int height) {
+        if (GraphicsEnvironment.isHeadless()) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration()
+                .createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+    }
+
+    /**
+     * @param image The image to measure.
+     * @return The approximate number of bytes the image's pixels take up.
+     */
+    private static long sizeOf(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * 4;
+    }
+
+    /**
+     * A single scaled page within the cache, which may still be being scaled.
+     */
+    private static final class Entry {
+        /** The scaled page, once it has been scaled. */
+        private final CompletableFuture<BufferedImage> image = new CompletableFuture<>();
+
+        /** The clock's value when the page was last looked up. */
+        private volatile long lastUsed;
+
+        /** The number of bytes the page counts towards the cache's memory budget. */
+        private long bytes;
+
+        /** Whether the entry has been removed from the cache. */
+        private boolean removed;
+
+        private Entry(long lastUsed) {
+            this.lastUsed = lastUsed;
+        }
+
+        /**
+         * Hands out the scaled page, counting it towards the memory budget unless the entry was removed meanwhile.
+         */
+        private synchronized void complete(BufferedImage image, AtomicLong usedBytes) {
+            if (!removed) {
+                bytes = sizeOf(image);
+                usedBytes.addAndGet(bytes);
+            }
+            this.image.complete(image);
+        }
+
+        /**
+         * Stops counting the page towards the memory budget, once the entry has been removed from the cache.
+         */
+        private synchronized void release(AtomicLong usedBytes) {
+            removed = true;
+            usedBytes.addAndGet(-bytes);
+            bytes = 0;
+        }
+    }
+
+    /**
+     * The identifier of a single scaled page within the cache.
+     */
+    private static final class Key {
+        private final TextureAtlas atlas;
+        private final int page;
+        private final int scaledSize;
+
+        private Key(TextureAtlas atlas, int page, int scaledSize) {
+            this.atlas = atlas;
+            this.page = page;
+            this.scaledSize = scaledSize;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key key = (Key) o;
+            return (atlas == key.atlas) && (page == key.page) && (scaledSize == key.scaledSize);
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(atlas) * 31 + page) * 31 + scaledSize;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package Rendering;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.util.List;
+
+/**
+ * A set of equally sized sprites packed together into a few large images (pages). Sprites are drawn by copying a
+ * source rectangle out of a page which has been pre-scaled to the current zoom level, so every sprite from the same
+ * page shares a single image.
+ */
+public class TextureAtlas {
+    /** The maximum width/height of each page of the atlas (in pixels), before scaling. */
+    public static final int PAGE_SIZE = 512;
+
+    /** The pages which the sprites are packed into. */
+    private final BufferedImage[] pages;
+
+    /** The width/height of each sprite (in pixels). */
+    private final int tileSize;
+
+    /** The number of sprites in each row/column of a page. */
+    private final int pageColumns;
+
+    /** The number of sprites in the atlas. */
+    private final int size;
+
+    /** The slot each sprite is packed into. Duplicate sprites share the slot of the first copy. */
+    private final int[] slots;
+
+    /** The average color of the sprite in each slot, as ARGB. Is null until it's first needed. */
+    private int[] averageColors;
+
+    /**
+     * Packs the given sprites into a new atlas. Each sprite's index in the list is its index in the atlas.
+     *
+     * @param tileSize The width/height of each sprite (in pixels).
+     * @param sprites The sprites to pack.
+     */
+    public TextureAtlas(int tileSize, List<BufferedImage> sprites) {
+        this(tileSize, sprites, null);
+    }
+
+    /**
+     * Packs the given sprites into a new atlas, storing duplicate sprites only once. Each sprite's index in the list
+     * is still its index in the atlas.
+     *
+     * @param tileSize The width/height of each sprite (in pixels).
+     * @param sprites The sprites to pack.
+     * @param originals The index of the first identical copy of each sprite, which is the sprite's own index if it
+     *                  isn't a duplicate. Null if there are no duplicates.
+     */
+    public TextureAtlas(int tileSize, List<BufferedImage> sprites, int[] originals) {
+        this.tileSize = tileSize;
+        size = sprites.size();
+        pageColumns = Math.max(1, PAGE_SIZE / tileSize);
+
+        // Only the first copy of each sprite gets a slot of its own
+        slots = new int[size];
+        int[] packed = new int[size];
+        int slotCount = 0;
+        for (int i = 0; i < size; i++) {
+            if ((originals == null) || (originals[i] == i)) {
+                packed[slotCount] = i;
+                slots[i] = slotCount++;
+            } else {
+                slots[i] = slots[originals[i]];
+            }
+        }
+
+        int spritesPerPage = pageColumns * pageColumns;
+        pages = new BufferedImage[Math.max(1, (slotCount + spritesPerPage - 1) / spritesPerPage)];
+
+        for (int page = 0; page < pages.length; page++) {
+            int first = page * spritesPerPage;
+            int count = Math.min(spritesPerPage, slotCount - first);
+
+            // Only make the page as large as it needs to be to fit its sprites
+            int columns = Math.max(1, Math.min(pageColumns, count));
+            int rows = Math.max(1, (count + pageColumns - 1) / pageColumns);
+
+            pages[page] = SpriteCache.createCompatibleImage(columns * tileSize, rows * tileSize);
+
+            Graphics2D g2 = pages[page].createGraphics();
+            g2.setComposite(AlphaComposite.Src);
+            for (int i = 0; i < count; i++) {
+                g2.drawImage(
+                        sprites.get(packed[first + i]), (i % pageColumns) * tileSize, (i / pageColumns) * tileSize, null
+                );
+            }
+            g2.dispose();
+        }
+    }
+
+    /**
+     * Instantiates an atlas from pages which have already been packed, e.g., by a previous atlas which was cached.
+     *
+     * @param tileSize The width/height of each sprite (in pixels).
+     * @param pages The pages which the sprites are packed into. Pages which aren't compatible with the display are
+     *              copied.
+     * @param slots The slot each sprite is packed into.
+     * @throws IllegalArgumentException Thrown if a sprite's slot is outside of the pages.
+     */
+    public TextureAtlas(int tileSize, BufferedImage[] pages, int[] slots) {
+        this.tileSize = tileSize;
+        this.slots = slots;
+        size = slots.length;
+        pageColumns = Math.max(1, PAGE_SIZE / tileSize);
+        this.pages = new BufferedImage[pages.length];
+
+        int spritesPerPage = pageColumns * pageColumns;
+        for (int slot : slots) {
+            if ((slot < 0) || (slot / spritesPerPage >= pages.length)) {
+                throw new IllegalArgumentException("Invalid slot " + slot);
+            }
+
+            BufferedImage page = pages[slot / spritesPerPage];
+            int x = (slot % spritesPerPage) % pageColumns;
+            int y = (slot % spritesPerPage) / pageColumns;
+            if (((x + 1) * tileSize > page.getWidth()) || ((y + 1) * tileSize > page.getHeight())) {
+                throw new IllegalArgumentException("Invalid slot " + slot);
+            }
+        }
+
+        // Copy the pages into the display's format, so that scaling them doesn't require conversion
+        for (int page = 0; page < pages.length; page++) {
+            this.pages[page] = SpriteCache.createCompatibleImage(pages[page].getWidth(), pages[page].getHeight());
+
+            Graphics2D g2 = this.pages[page].createGraphics();
+            g2.setComposite(AlphaComposite.Src);
+            g2.drawImage(pages[page], 0, 0, null);
+            g2.dispose();
+        }
+    }
+
+    /**
+     * @param index The index of the sprite in the atlas.
+     * @return An unscaled view of the sprite within its page.
+     */
+    public BufferedImage getSprite(int index) {
+        int slot = slots[index] % (pageColumns * pageColumns);
+
+        return pages[slots[index] / (pageColumns * pageColumns)].getSubimage(
+                (slot % pageColumns) * tileSize, (slot / pageColumns) * tileSize, tileSize, tileSize
+        );
+    }
+
+    /**
+     * Draws a sprite from the atlas at the given location and size.
+     *
+     * @param g2 The Graphics2D object to handle the graphics resources.
+     * @param index The index of the sprite in the atlas.
+     * @param x The x coordinate of the top-left corner of the sprite.
+     * @param y The y coordinate of the top-left corner of the sprite.
+     * @param scaledSize The width/height of the sprite on screen.
+     * @param cache The cache holding the pre-scaled pages.
+     * @param observer The object to be notified as more of the image is converted.
+     */
+    public void draw(Graphics2D g2, int index, int x, int y, int scaledSize, SpriteCache cache,
+                     ImageObserver observer) {
+        int spritesPerPage = pageColumns * pageColumns;
+        int slot = slots[index] % spritesPerPage;
+
+        BufferedImage page = cache.get(this, slots[index] / spritesPerPage, scaledSize);
+
+        int sourceX = (slot % pageColumns) * scaledSize;
+        int sourceY = (slot / pageColumns) * scaledSize;
+
+        g2.drawImage(
+                page,
+                x, y, x + scaledSize, y + scaledSize,
+                sourceX, sourceY, sourceX + scaledSize, sourceY + scaledSize,
+                observer
+        );
+    }
+
+    /**
+     * @param index The index of the sprite in the atlas.
+     * @return The average color of the sprite as ARGB, weighted by the opacity of its pixels.
+     */
+    public synchronized int getAverageColor(int index) {
+        if (averageColors == null) {
+            int slotCount = 0;
+            for (int slot : slots) {
+                slotCount = Math.max(slotCount, slot + 1);
+            }
+
+            int spritesPerPage = pageColumns * pageColumns;
+            averageColors = new int[slotCount];
+            for (int slot = 0; slot < slotCount; slot++) {
+                int pageSlot = slot % spritesPerPage;
+                averageColors[slot] = averageColor(
+                        pages[slot / spritesPerPage],
+                        (pageSlot % pageColumns) * tileSize, (pageSlot / pageColumns) * tileSize, tileSize, tileSize
+                );
+            }
+        }
+
+        return averageColors[slots[index]];
+    }
+
+    /**
+     * Calculates the average color of an area of an image, weighting each pixel's color by its opacity.
+     *
+     * @param image The image.
+     * @param x The x coordinate of the area's top-left corner.
+     * @param y The y coordinate of the area's top-left corner.
+     * @param width The width of the area.
+     * @param height The height of the area.
+     * @return The average color as ARGB.
+     */
+    public static int averageColor(BufferedImage image, int x, int y, int width, int height) {
+        return averageColor(image.getRGB(x, y, width, height, null, 0, width));
+    }
+
+    /**
+     * Calculates the average of some colors, weighting each color by its opacity.
+     *
+     * @param pixels The colors as ARGB.
+     * @return The average color as ARGB.
+     */
+    public static int averageColor(int... pixels) {
+        long alpha = 0, red = 0, green = 0, blue = 0;
+        for (int pixel : pixels) {
+            int a = pixel >>> 24;
+            alpha += a;
+            red += ((pixel >> 16) & 0xFF) * a;
+            green += ((pixel >> 8) & 0xFF) * a;
+            blue += (pixel & 0xFF) * a;
+        }
+
+        if (alpha == 0) return 0;
+
+        return (int) (alpha / pixels.length) << 24 | (int) (red / alpha) << 16 | (int) (green / alpha) << 8
+                | (int) (blue / alpha);
+    }
+
+    /**
+     * @param page The index of the page.
+     * @return The unscaled image of the page.
+     */
+    public BufferedImage getPage(int page) {
+        return pages[page];
+    }
+
+    /**
+     * @param index The index of the sprite in the atlas.
+     * @return The slot the sprite is packed into, counting across all pages.
+     */
+    public int getSlot(int index) {
+        return slots[index];
+    }
+
+    /**
+     * @return The number of pages in the atlas.
+     */
+    public int getPageCount() {
+        return pages.length;
+    }
+
+    /**
+     * @return The width/height of each sprite (in pixels).
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return The number of sprites in the atlas.
+     */
+    public int size() {
+        return size;
+    }
+}
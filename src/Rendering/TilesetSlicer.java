@@ -0,0 +1,425 @@
+package Rendering;
+
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Slices a tileset image into a grid of tiles, finding the tiles which aren't fully transparent and the tiles which
+ * are duplicates of each other. The image's pixel data is read in bulk straight from its raster (without converting
+ * each pixel's color model), and the rows of tiles are scanned in parallel.
+ */
+public final class TilesetSlicer {
+    /** The number of rows of tiles below which a scanning task no longer splits itself up. */
+    private static final int ROWS_PER_TASK = 2;
+
+    /** The number of sprites below which a hashing task no longer splits itself up. */
+    private static final int SPRITES_PER_TASK = 64;
+
+    private TilesetSlicer() {
+    }
+
+    /**
+     * Finds the tiles of a tileset image which contain at least one pixel that isn't fully transparent. Partial tiles
+     * at the right and bottom edges of the image are ignored.
+     *
+     * @param image The tileset image.
+     * @param tileSize The width/height of each tile in pixels.
+     * @return The positions of the non-empty tiles in the grid, stored as {@code y * columns + x}, in row-major
+     *         order. The order doesn't depend on how the scanning was split up.
+     */
+    public static int[] findSprites(BufferedImage image, int tileSize) {
+        int rows = image.getHeight() / tileSize;
+        int columns = image.getWidth() / tileSize;
+
+        boolean[] empty = new boolean[rows * columns];
+        if (empty.length == 0) return new int[0];
+
+        AlphaScanner scanner = createScanner(image);
+        ForkJoinPool.commonPool().invoke(new ScanTask(scanner, tileSize, columns, empty, 0, rows));
+
+        // Collect the results in grid order, so that sprite indices are deterministic
+        int[] sprites = new int[empty.length];
+        int count = 0;
+        for (int i = 0; i < empty.length; i++) {
+            if (!empty[i]) sprites[count++] = i;
+        }
+
+        return Arrays.copyOf(sprites, count);
+    }
+
+    /**
+     * Finds the sprites of a tileset which are pixel-for-pixel copies of an earlier sprite. Pixels which are fully
+     * transparent are treated as identical regardless of their color. Sprites are hashed in parallel, and sprites
+     * with equal hashes are compared in full.
+     *
+     * @param image The tileset image.
+     * @param tileSize The width/height of each tile in pixels.
+     * @param sprites The positions of the sprites, as returned by {@link #findSprites(BufferedImage, int)}.
+     * @return The index of the first identical copy of each sprite, which is the sprite's own index if no earlier
+     *         sprite is identical to it.
+     */
+    public static int[] findOriginals(BufferedImage image, int tileSize, int[] sprites) {
+        int columns = image.getWidth() / tileSize;
+
+        PixelReader reader = createReader(image);
+
+        long[] hashes = new long[sprites.length];
+        ForkJoinPool.commonPool().invoke(
+                new HashTask(reader, tileSize, columns, sprites, hashes, 0, sprites.length)
+        );
+
+        // Match each sprite against the earlier sprites with the same hash, in order, so the results are deterministic
+        int[] originals = new int[sprites.length];
+        HashMap<Long, ArrayList<Integer>> candidates = new HashMap<>();
+
+        // The pixels of the sprites which other sprites are compared against, so that each is only read once
+        HashMap<Integer, int[]> candidatePixels = new HashMap<>();
+
+        for (int i = 0; i < sprites.length; i++) {
+            originals[i] = i;
+
+            ArrayList<Integer> sameHash = candidates.computeIfAbsent(hashes[i], hash -> new ArrayList<>());
+            int[] pixels = null;
+
+            for (int candidate : sameHash) {
+                if (pixels == null) pixels = readPixels(reader, tileSize, columns, sprites[i], null);
+
+                int[] other = candidatePixels.get(candidate);
+                if (other == null) {
+                    other = readPixels(reader, tileSize, columns, sprites[candidate], null);
+                    candidatePixels.put(candidate, other);
+                }
+
+                if (Arrays.equals(other, pixels)) {
+                    originals[i] = candidate;
+                    break;
+                }
+            }
+
+            if (originals[i] == i) {
+                sameHash.add(i);
+                if (pixels != null) candidatePixels.put(i, pixels);
+            }
+        }
+
+        return originals;
+    }
+
+    /**
+     * Reads the pixels of a tile, row by row.
+     *
+     * @param pixels The array to read the pixels into, or null to allocate a new one.
+     * @return The pixels, in the reader's format.
+     */
+    private static int[] readPixels(PixelReader reader, int tileSize, int columns, int position, int[] pixels) {
+        if (pixels == null) pixels = new int[tileSize * tileSize];
+
+        int x = (position % columns) * tileSize;
+        int y = (position / columns) * tileSize;
+        for (int row = 0; row < tileSize; row++) {
+            reader.read(x, y + row, tileSize, pixels, row * tileSize);
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Picks the fastest way of reading the alpha channel of an image.
+     */
+    private static AlphaScanner createScanner(BufferedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        Raster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+
+        // Every pixel of an opaque image is visible
+        if (colorModel.getTransparency() == Transparency.OPAQUE) return (x, y, width) -> true;
+
+        // Packed integer pixels (e.g., TYPE_INT_ARGB)
+        if ((raster.getDataBuffer() instanceof DataBufferInt) && (sampleModel instanceof SinglePixelPackedSampleModel)
+                && (colorModel instanceof DirectColorModel)) {
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset();
+            int alphaMask = ((DirectColorModel) colorModel).getAlphaMask();
+            SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+            int translateX = raster.getSampleModelTranslateX();
+            int translateY = raster.getSampleModelTranslateY();
+
+            return (x, y, width) -> {
+                int start = offset + packed.getOffset(x - translateX, y - translateY);
+                for (int i = start; i < start + width; i++) {
+                    if ((data[i] & alphaMask) != 0) return true;
+                }
+
+                return false;
+            };
+        }
+
+        // Interleaved byte pixels with the alpha as the last band (e.g., TYPE_4BYTE_ABGR)
+        if ((raster.getDataBuffer() instanceof DataBufferByte) && (sampleModel instanceof ComponentSampleModel)
+                && colorModel.hasAlpha() && (colorModel.getComponentSize(colorModel.getNumComponents() - 1) == 8)
+                && (sampleModel.getNumBands() == colorModel.getNumComponents())
+                && (((ComponentSampleModel) sampleModel).getBankIndices()[sampleModel.getNumBands() - 1] == 0)) {
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset();
+            ComponentSampleModel components = (ComponentSampleModel) sampleModel;
+            int alphaBand = sampleModel.getNumBands() - 1;
+            int pixelStride = components.getPixelStride();
+            int translateX = raster.getSampleModelTranslateX();
+            int translateY = raster.getSampleModelTranslateY();
+
+            return (x, y, width) -> {
+                int start = offset + components.getOffset(x - translateX, y - translateY, alphaBand);
+                int end = start + width * pixelStride;
+                for (int i = start; i < end; i += pixelStride) {
+                    if (data[i] != 0) return true;
+                }
+
+                return false;
+            };
+        }
+
+        // Any other image with an alpha channel, read a row at a time
+        Raster alpha = image.getAlphaRaster();
+        if (alpha != null) {
+            return (x, y, width) -> {
+                int[] samples = alpha.getSamples(x, y, width, 1, 0, (int[]) null);
+                for (int sample : samples) {
+                    if (sample != 0) return true;
+                }
+
+                return false;
+            };
+        }
+
+        // Images without an alpha channel which can still be transparent (e.g., indexed colors)
+        return (x, y, width) -> {
+            int[] pixels = image.getRGB(x, y, width, 1, null, 0, width);
+            for (int pixel : pixels) {
+                if ((pixel >>> 24) != 0) return true;
+            }
+
+            return false;
+        };
+    }
+
+    /**
+     * Picks the fastest way of reading the pixels of an image for comparing them. Pixels are read straight from the
+     * image's raster where possible, without converting their color model, and fully transparent pixels are all read
+     * as 0 regardless of their color.
+     */
+    private static PixelReader createReader(BufferedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        Raster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        boolean hasAlpha = colorModel.hasAlpha();
+
+        // Packed integer pixels (e.g., TYPE_INT_ARGB or TYPE_INT_RGB)
+        if ((raster.getDataBuffer() instanceof DataBufferInt) && (sampleModel instanceof SinglePixelPackedSampleModel)
+                && (colorModel instanceof DirectColorModel)) {
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset();
+            DirectColorModel direct = (DirectColorModel) colorModel;
+            int alphaMask = direct.getAlphaMask();
+
+            // Bits which don't belong to any component are ignored
+            int mask = direct.getRedMask() | direct.getGreenMask() | direct.getBlueMask() | alphaMask;
+            SinglePixelPackedSampleModel packed = (SinglePixelPackedSampleModel) sampleModel;
+            int translateX = raster.getSampleModelTranslateX();
+            int translateY = raster.getSampleModelTranslateY();
+
+            return (x, y, width, pixels, pixelOffset) -> {
+                int start = offset + packed.getOffset(x - translateX, y - translateY);
+                for (int i = 0; i < width; i++) {
+                    int pixel = data[start + i] & mask;
+                    pixels[pixelOffset + i] = (hasAlpha && ((pixel & alphaMask) == 0)) ? 0 : pixel;
+                }
+            };
+        }
+
+        // Interleaved byte pixels with up to 4 bands (e.g., TYPE_4BYTE_ABGR or TYPE_3BYTE_BGR), with the alpha as the
+        // last band
+        if ((raster.getDataBuffer() instanceof DataBufferByte) && (sampleModel instanceof ComponentSampleModel)
+                && (sampleModel.getNumBands() <= 4) && (sampleModel.getNumBands() == colorModel.getNumComponents())
+                && isSingleBank((ComponentSampleModel) sampleModel)) {
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int offset = raster.getDataBuffer().getOffset();
+            ComponentSampleModel components = (ComponentSampleModel) sampleModel;
+            int[] bandOffsets = components.getBandOffsets();
+            int alphaOffset = bandOffsets[bandOffsets.length - 1];
+            int pixelStride = components.getPixelStride();
+            int translateX = raster.getSampleModelTranslateX();
+            int translateY = raster.getSampleModelTranslateY();
+
+            return (x, y, width, pixels, pixelOffset) -> {
+                // The offset of the pixel itself, rather than of its first band
+                int start = offset + components.getOffset(x - translateX, y - translateY) - bandOffsets[0];
+                for (int i = 0; i < width; i++) {
+                    int index = start + i * pixelStride;
+                    if (hasAlpha && (data[index + alphaOffset] == 0)) {
+                        pixels[pixelOffset + i] = 0;
+                        continue;
+                    }
+
+                    int pixel = 0;
+                    for (int bandOffset : bandOffsets) {
+                        pixel = (pixel << 8) | (data[index + bandOffset] & 0xFF);
+                    }
+                    pixels[pixelOffset + i] = pixel;
+                }
+            };
+        }
+
+        // Any other image (e.g., indexed colors), converted to ARGB a row at a time
+        return (x, y, width, pixels, pixelOffset) -> {
+            image.getRGB(x, y, width, 1, pixels, pixelOffset, width);
+            for (int i = pixelOffset; i < pixelOffset + width; i++) {
+                if ((pixels[i] >>> 24) == 0) pixels[i] = 0;
+            }
+        };
+    }
+
+    /**
+     * @return Whether every band of the sample model is stored in the first bank as 8-bit samples.
+     */
+    private static boolean isSingleBank(ComponentSampleModel sampleModel) {
+        for (int band = 0; band < sampleModel.getNumBands(); band++) {
+            if ((sampleModel.getBankIndices()[band] != 0) || (sampleModel.getSampleSize(band) != 8)) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads a horizontal run of pixels for comparing them. Implementations must be safe to call from multiple threads.
+     */
+    private interface PixelReader {
+        /**
+         * @param x The x coordinate of the first pixel.
+         * @param y The y coordinate of the row.
+         * @param width The number of pixels in the run.
+         * @param pixels The array to read the pixels into.
+         * @param pixelOffset The index in the array of the first pixel.
+         */
+        void read(int x, int y, int width, int[] pixels, int pixelOffset);
+    }
+
+    /**
+     * Checks a horizontal run of pixels for visibility. Implementations must be safe to call from multiple threads.
+     */
+    private interface AlphaScanner {
+        /**
+         * @param x The x coordinate of the first pixel.
+         * @param y The y coordinate of the row.
+         * @param width The number of pixels in the run.
+         * @return Whether any pixel in the run isn't fully transparent.
+         */
+        boolean isVisible(int x, int y, int width);
+    }
+
+    /**
+     * Checks a range of rows of tiles for emptiness, splitting the range in half and checking each half in parallel
+     * while it is large.
+     */
+    private static class ScanTask extends RecursiveAction {
+        private final AlphaScanner scanner;
+        private final int tileSize;
+        private final int columns;
+        private final boolean[] empty;
+        private final int startRow, endRow;
+
+        private ScanTask(AlphaScanner scanner, int tileSize, int columns, boolean[] empty, int startRow, int endRow) {
+            this.scanner = scanner;
+            this.tileSize = tileSize;
+            this.columns = columns;
+            this.empty = empty;
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - startRow > ROWS_PER_TASK) {
+                int middle = (startRow + endRow) >>> 1;
+                invokeAll(
+                        new ScanTask(scanner, tileSize, columns, empty, startRow, middle),
+                        new ScanTask(scanner, tileSize, columns, empty, middle, endRow)
+                );
+                return;
+            }
+
+            for (int row = startRow; row < endRow; row++) {
+                for (int column = 0; column < columns; column++) {
+                    boolean visible = false;
+
+                    // Stop at the first visible pixel
+                    for (int y = row * tileSize; (y < (row + 1) * tileSize) && !visible; y++) {
+                        visible = scanner.isVisible(column * tileSize, y, tileSize);
+                    }
+
+                    empty[row * columns + column] = !visible;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hashes the pixels of a range of sprites, splitting the range in half and hashing each half in parallel while it
+     * is large.
+     */
+    private static class HashTask extends RecursiveAction {
+        private final PixelReader reader;
+        private final int tileSize;
+        private final int columns;
+        private final int[] sprites;
+        private final long[] hashes;
+        private final int start, end;
+
+        private HashTask(PixelReader reader, int tileSize, int columns, int[] sprites, long[] hashes,
+                         int start, int end) {
+            this.reader = reader;
+            this.tileSize = tileSize;
+            this.columns = columns;
+            this.sprites = sprites;
+            this.hashes = hashes;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > SPRITES_PER_TASK) {
+                int middle = (start + end) >>> 1;
+                invokeAll(
+                        new HashTask(reader, tileSize, columns, sprites, hashes, start, middle),
+                        new HashTask(reader, tileSize, columns, sprites, hashes, middle, end)
+                );
+                return;
+            }
+
+            int[] pixels = new int[tileSize * tileSize];
+
+            for (int i = start; i < end; i++) {
+                // 64-bit FNV-1a over the pixels
+                long hash = 0xCBF29CE484222325L;
+                for (int pixel : readPixels(reader, tileSize, columns, sprites[i], pixels)) {
+                    hash = (hash ^ pixel) * 0x100000001B3L;
+                }
+
+                hashes[i] = hash;
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package Serial;
+
+import java.io.Serializable;
+
+/**
+ * A fixed-size square block of a layer's cells. Only chunks which contain at least one tile are stored.
+ */
+public class Chunk implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** The width/height of each chunk in number of tiles. Must be a power of two. */
+    public static final int SIZE = 32;
+
+    /** The number of bits needed to store a cell's coordinate within its chunk. */
+    public static final int SHIFT = 5;
+
+    /** The bitmask which extracts a cell's coordinate within its chunk from its layer coordinate. */
+    public static final int MASK = SIZE - 1;
+
+    /** The approximate number of bytes a chunk takes up in memory. */
+    public static final int BYTES = SIZE * SIZE * 4 + 32;
+
+    /** The palette index of every cell, row by row. */
+    private final int[] cells;
+
+    /** The number of cells which aren't empty. */
+    private int count;
+
+    /** Whether the chunk is shared with a snapshot, in which case it must be copied before it is changed. */
+    private transient boolean shared;
+
+    /**
+     * Instantiates an empty chunk.
+     */
+    public Chunk() {
+        cells = new int[SIZE * SIZE];
+        count = 0;
+    }
+
+    /**
+     * Instantiates a copy of another chunk.
+     *
+     * @param chunk The chunk to copy.
+     */
+    public Chunk(Chunk chunk) {
+        cells = chunk.cells.clone();
+        count = chunk.count;
+    }
+
+    /**
+     * @param x The x coordinate of the cell within the chunk.
+     * @param y The y coordinate of the cell within the chunk.
+     * @return The palette index of the cell's tile.
+     */
+    public int get(int x, int y) {
+        return cells[(y << SHIFT) | x];
+    }
+
+    /**
+     * Sets the palette index of a cell.
+     *
+     * @param x The x coordinate of the cell within the chunk.
+     * @param y The y coordinate of the cell within the chunk.
+     * @param index The palette index of the cell's new tile.
+     * @return The palette index of the cell's previous tile.
+     */
+    public int set(int x, int y, int index) {
+        int previous = cells[(y << SHIFT) | x];
+        cells[(y << SHIFT) | x] = index;
+
+        if ((previous == Palette.EMPTY) && (index != Palette.EMPTY)) count++;
+        if ((previous != Palette.EMPTY) && (index == Palette.EMPTY)) count--;
+
+        return previous;
+    }
+
+    /**
+     * @return The number of cells which aren't empty.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return Whether every cell in the chunk is empty.
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Marks the chunk as shared with a snapshot. From then on, the chunk is never changed again, and layers replace
+     * it with a copy before changing any of its cells.
+     */
+    void share() {
+        shared = true;
+    }
+
+    /**
+     * @return Whether the chunk is shared with a snapshot.
+     */
+    boolean isShared() {
+        return shared;
+    }
+}
@@ -0,0 +1,140 @@
+package Serial;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes the cells of a chunk for level files. Cells are stored row by row as run-length encoded
+ * pairs of varints: the length of a run of equal cells, followed by their palette index. The encoded cells may also
+ * be compressed with raw DEFLATE.
+ */
+public final class ChunkCodec {
+    /** The maximum number of bytes an encoded chunk can take up. */
+    public static final int MAX_BYTES = Chunk.SIZE * Chunk.SIZE * Varint.MAX_BYTES * 2;
+
+    private ChunkCodec() {
+    }
+
+    /**
+     * Encodes the cells of a chunk.
+     *
+     * @param chunk The chunk to encode.
+     * @param buffer The buffer to write the encoded cells to. Must have at least {@link #MAX_BYTES} remaining.
+     */
+    public static void encode(Chunk chunk, ByteBuffer buffer) {
+        int cells = Chunk.SIZE * Chunk.SIZE;
+
+        int i = 0;
+        while (i < cells) {
+            int index = chunk.get(i & Chunk.MASK, i >> Chunk.SHIFT);
+
+            // Find the end of the run of cells with the same palette index
+            int run = 1;
+            while ((i + run < cells) && (chunk.get((i + run) & Chunk.MASK, (i + run) >> Chunk.SHIFT) == index)) {
+                run++;
+            }
+
+            Varint.write(buffer, run);
+            Varint.write(buffer, index);
+            i += run;
+        }
+    }
+
+    /**
+     * Decodes the cells of a chunk.
+     *
+     * @param buffer The buffer to read the encoded cells from.
+     * @param paletteSize The number of entries in the level's palette, used to validate the palette indices.
+     * @return The decoded chunk.
+     * @throws IllegalArgumentException Thrown if the encoded cells are malformed.
+     */
+    public static Chunk decode(ByteBuffer buffer, int paletteSize) {
+        Chunk chunk = new Chunk();
+        int cells = Chunk.SIZE * Chunk.SIZE;
+
+        int i = 0;
+        while (i < cells) {
+            int run = Varint.read(buffer);
+            int index = Varint.read(buffer);
+
+            if ((run <= 0) || (run > cells - i)) {
+                throw new IllegalArgumentException("Invalid run length " + run);
+            }
+            if ((index < 0) || (index >= paletteSize)) {
+                throw new IllegalArgumentException("Invalid palette index " + index);
+            }
+
+            // Empty cells don't have to be set
+            if (index != Palette.EMPTY) {
+                for (int end = i + run; i < end; i++) {
+                    chunk.set(i & Chunk.MASK, i >> Chunk.SHIFT, index);
+                }
+            } else {
+                i += run;
+            }
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Encodes the cells of a chunk, optionally compressing them.
+     *
+     * @param chunk The chunk to encode.
+     * @param scratch A buffer with a capacity of at least {@link #MAX_BYTES}, used to hold the uncompressed cells.
+     * @param deflater The deflater to compress the cells with (which is reset first), or null to leave them
+     *                 uncompressed.
+     * @return The encoded cells.
+     */
+    public static byte[] encode(Chunk chunk, ByteBuffer scratch, Deflater deflater) {
+        scratch.clear();
+        encode(chunk, scratch);
+
+        if (deflater == null) return Arrays.copyOf(scratch.array(), scratch.position());
+
+        deflater.reset();
+        deflater.setInput(scratch.array(), 0, scratch.position());
+        deflater.finish();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(scratch.position() / 2 + 16);
+        byte[] block = new byte[1024];
+        while (!deflater.finished()) {
+            int length = deflater.deflate(block);
+            compressed.write(block, 0, length);
+        }
+
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Decompresses and decodes the cells of a chunk.
+     *
+     * @param buffer The buffer holding only the compressed cells.
+     * @param paletteSize The number of entries in the level's palette, used to validate the palette indices.
+     * @param inflater The inflater to decompress the cells with, which is reset first.
+     * @param scratch An array of at least {@link #MAX_BYTES} bytes, used to hold the decompressed cells.
+     * @return The decoded chunk.
+     * @throws IllegalArgumentException Thrown if the compressed or encoded cells are malformed.
+     */
+    public static Chunk decode(ByteBuffer buffer, int paletteSize, Inflater inflater, byte[] scratch) {
+        byte[] compressed = new byte[buffer.remaining()];
+        buffer.get(compressed);
+
+        inflater.reset();
+        inflater.setInput(compressed);
+
+        int length;
+        try {
+            length = inflater.inflate(scratch, 0, MAX_BYTES);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid compressed chunk", e);
+        }
+        if (!inflater.finished()) throw new IllegalArgumentException("Invalid compressed chunk");
+
+        return decode(ByteBuffer.wrap(scratch, 0, length), paletteSize);
+    }
+}
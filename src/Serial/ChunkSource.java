@@ -0,0 +1,242 @@
+package Serial;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
+import java.util.zip.Inflater;
+
+/**
+ * A memory-mapped level file which layers load their chunks from on demand. Chunks are only decoded once they are
+ * accessed (e.g., once they come into view), and the least recently used chunks which haven't been changed since
+ * they were loaded are paged back out once more than a set number of them are in memory.
+ * <p>
+ * A single mapping can't be larger than 2 GB, so larger files are mapped in windows. Each window starts
+ * {@link #WINDOW_BYTES} after the previous one, and extends {@link #MAX_PAYLOAD_BYTES} into the next, so that every
+ * chunk's payload lies entirely within the window it starts in.
+ */
+public class ChunkSource {
+    /** The default maximum number of unchanged chunks kept in memory at once (about 32 MB). */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * The maximum length of a chunk's payload in bytes. A chunk's encoded cells take up at most
+     * {@link ChunkCodec#MAX_BYTES}, and deflating them only adds a few bytes.
+     */
+    public static final int MAX_PAYLOAD_BYTES = 64 * 1024;
+
+    /** The distance between the starts of the windows which files too large to be mapped at once are mapped in. */
+    public static final long WINDOW_BYTES = 1L << 30;
+
+    /**
+     * The inflater and decompression buffer of each thread decoding compressed chunks. They're shared by every chunk
+     * source, since an inflater holds native memory which is only freed once it's ended or garbage collected.
+     */
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[ChunkCodec.MAX_BYTES]);
+
+    /** The contents of the level file, in one or more windows. */
+    private final ByteBuffer[] windows;
+
+    /** The distance between the starts of the windows, or the size of the whole file if it's in a single window. */
+    private final long windowBytes;
+
+    /** The number of entries in the level's palette, used to validate the palette indices of loaded chunks. */
+    private final int paletteSize;
+
+    /** Whether the chunks are compressed (see {@link LevelFormat#FLAG_DEFLATE}). */
+    private final boolean compressed;
+
+    /** The maximum number of unchanged chunks kept in memory at once. */
+    private final int capacity;
+
+    /**
+     * Notified of chunks which can't be decoded, which are then left empty. If null, decoding such a chunk throws
+     * instead.
+     */
+    private final Consumer<String> onMalformedChunk;
+
+    /** The locations of the loaded chunks which haven't been changed, ordered from least to most recently used. */
+    private final LinkedHashMap<Location, Boolean> resident;
+
+    /**
+     * Instantiates a chunk source over the contents of a level file held in a single buffer. Chunks which can't be
+     * decoded throw an exception.
+     *
+     * @param buffer The contents of the level file.
+     * @param paletteSize The number of entries in the level's palette.
+     * @param compressed Whether the chunks are compressed.
+     * @param capacity The maximum number of unchanged chunks kept in memory at once.
+     */
+    public ChunkSource(ByteBuffer buffer, int paletteSize, boolean compressed, int capacity) {
+        this(new ByteBuffer[] {buffer}, paletteSize, compressed, capacity, null);
+    }
+
+    /**
+     * Instantiates a chunk source over the contents of a level file.
+     *
+     * @param windows The contents of the level file, usually mapped by {@link #map(FileChannel)}.
+     * @param paletteSize The number of entries in the level's palette.
+     * @param compressed Whether the chunks are compressed.
+     * @param capacity The maximum number of unchanged chunks kept in memory at once.
+     * @param onMalformedChunk Notified of a description of each chunk which can't be decoded, which is then left
+     *                         empty. May be called from any thread. If null, decoding such a chunk throws instead.
+     */
+    public ChunkSource(ByteBuffer[] windows, int paletteSize, boolean compressed, int capacity,
+                       Consumer<String> onMalformedChunk) {
+        this.windows = windows;
+        this.windowBytes = (windows.length == 1) ? Long.MAX_VALUE : WINDOW_BYTES;
+        this.paletteSize = paletteSize;
+        this.compressed = compressed;
+        this.capacity = capacity;
+        this.onMalformedChunk = onMalformedChunk;
+        resident = new LinkedHashMap<>(256, 0.75f, true);
+    }
+
+    /**
+     * Maps a level file into memory, in a single buffer if it's small enough, or in windows otherwise.
+     *
+     * @param channel The level file. The mapping stays valid after it's closed.
+     * @return The mapped windows, each starting {@link #WINDOW_BYTES} after the previous one.
+     * @throws IOException Thrown if the file can't be mapped.
+     */
+    public static ByteBuffer[] map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size <= Integer.MAX_VALUE) {
+            return new ByteBuffer[] {channel.map(FileChannel.MapMode.READ_ONLY, 0, size)};
+        }
+
+        ByteBuffer[] windows = new ByteBuffer[(int) ((size + WINDOW_BYTES - 1) / WINDOW_BYTES)];
+        for (int i = 0; i < windows.length; i++) {
+            long start = i * WINDOW_BYTES;
+            windows[i] = channel.map(
+                    FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_BYTES + MAX_PAYLOAD_BYTES, size - start)
+            );
+        }
+
+        return windows;
+    }
+
+    /**
+     * Decodes a chunk from the file. Safe to call from any thread.
+     *
+     * @param offset The position of the chunk's payload in the file.
+     * @param length The length of the chunk's payload in bytes.
+     * @return The decoded chunk.
+     * @throws IllegalArgumentException Thrown if the payload isn't a valid chunk (see {@link ChunkCodec}).
+     * @throws BufferUnderflowException Thrown if the payload ends early.
+     * @throws IndexOutOfBoundsException Thrown if the payload lies outside of the file.
+     */
+    public Chunk decode(long offset, int length) {
+        int window = (int) (offset / windowBytes);
+        int position = (int) (offset - window * windowBytes);
+
+        ByteBuffer view = windows[window].duplicate();
+        view.limit(position + length);
+        view.position(position);
+
+        if (compressed) return ChunkCodec.decode(view, paletteSize, INFLATERS.get(), SCRATCH.get());
+
+        return ChunkCodec.decode(view, paletteSize);
+    }
+
+    /**
+     * Decodes a chunk of a layer from the file. A chunk which can't be decoded is reported and left empty, unless
+     * there's nobody to report it to. Safe to call from any thread.
+     *
+     * @param location The location of the chunk.
+     * @return The decoded chunk, or null if it's malformed.
+     */
+    Chunk decode(Location location) {
+        if (location.malformed) return null;
+
+        try {
+            return decode(location.offset, location.length);
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            if (onMalformedChunk == null) throw e;
+
+            // Only reported once, after which the chunk stays empty until it's changed
+            location.malformed = true;
+            onMalformedChunk.accept(
+                    "Chunk " + Layer.keyX(location.key) + ", " + Layer.keyY(location.key) + " of layer \""
+                            + location.layer.getName() + "\" is malformed (" + e.getMessage() + ")"
+            );
+            return null;
+        }
+    }
+
+    /**
+     * Marks a loaded chunk as the most recently used, and pages out the least recently used chunks if there are now
+     * too many in memory.
+     *
+     * @param location The location of the chunk, which stands for it among the loaded chunks.
+     */
+    void touch(Location location) {
+        // Chunks which are already loaded are only moved, without allocating anything
+        if (resident.get(location) != null) return;
+
+        resident.put(location, Boolean.TRUE);
+
+        Iterator<Location> iterator = resident.keySet().iterator();
+        while (resident.size() > capacity) {
+            Location oldest = iterator.next();
+            iterator.remove();
+            oldest.layer.unload(oldest.key);
+        }
+    }
+
+    /**
+     * Stops tracking a chunk, such as once it has been changed and can no longer be paged out.
+     *
+     * @param location The location of the chunk.
+     */
+    void forget(Location location) {
+        resident.remove(location);
+    }
+
+    /**
+     * Where a chunk of a layer is stored in the file. While the chunk is loaded, its location also stands for it
+     * among the loaded chunks, so each layer needs its own.
+     */
+    static final class Location implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Layer layer;
+        private final long key;
+
+        /** The position of the chunk's payload in the file, and its length in bytes. */
+        private final long offset;
+        private final int length;
+
+        /** Whether the chunk has turned out to be malformed, in which case it's left empty. */
+        private volatile boolean malformed;
+
+        /**
+         * @param layer The layer the chunk belongs to.
+         * @param key The key of the chunk's storage coordinates.
+         * @param offset The position of the chunk's payload in the file.
+         * @param length The length of the chunk's payload in bytes.
+         */
+        Location(Layer layer, long key, long offset, int length) {
+            this.layer = layer;
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @param layer A copy of the layer the chunk belongs to.
+         * @return The same location, for the copy of the layer.
+         */
+        Location copyFor(Layer layer) {
+            Location copy = new Location(layer, key, offset, length);
+            copy.malformed = malformed;
+
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,719 @@
+package Serial;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the edits made to a level, used to recover unsaved work after a crash. Every change is
+ * appended as a small binary record, and the records are written to disk and synced in batches by a background
+ * thread, so the cost of autosaving depends on the number of edits rather than the size of the level.
+ * <p>
+ * The journal is split into generations. Each generation starts with a checkpoint (a level file holding the whole
+ * level) followed by a journal file holding every edit made since. Once a generation's journal grows large enough,
+ * it is compacted by starting a new generation. A level is recovered by loading the newest checkpoint and replaying
+ * the journal files from its generation onwards.
+ * <pre>
+ * journal file:    frames, one after another
+ * frame:           length in bytes (int), CRC-32 of the records (int), records
+ * record:          type (byte), followed by the record's values:
+ * PALETTE:         tileset ID (string), sprite index (varint), flags (varint)
+ * CELL:            layer index (varint), x/y (varints), palette index (varint)
+ * LAYER_ADD:       layer index (varint), name (string), origin x/y (zigzag varints)
+ * LAYER_REMOVE:    layer index (varint)
+ * RESIZE:          width/height (varints), x/y shift (zigzag varints)
+ * CHUNK:           layer index (varint), chunk x/y in storage coordinates (zigzag varints), payload length (varint),
+ *                  payload (see {@link ChunkCodec})
+ * </pre>
+ * Palette entries are appended in the order they were added to the palette, so that palette indices are replayed
+ * verbatim. A frame which was only partly written when the editor crashed fails its checksum, and is ignored along
+ * with everything after it.
+ * <p>
+ * Records must be appended from a single thread (i.e., the event dispatch thread), after the change they describe
+ * has been made.
+ * <p>
+ * A journal holds a lock on its directory until it's closed, so that a second instance of the editor can't write to
+ * (or recover) the same files at the same time.
+ */
+public class Journal {
+    /** How often the appended records are written to disk and synced, in milliseconds. */
+    public static final long FLUSH_INTERVAL = 1000;
+
+    /** The number of bytes appended to a generation's journal after which a new generation is started. */
+    public static final long COMPACT_BYTES = 8 * 1024 * 1024;
+
+    private static final byte PALETTE = 1;
+    private static final byte CELL = 2;
+    private static final byte LAYER_ADD = 3;
+    private static final byte LAYER_REMOVE = 4;
+    private static final byte RESIZE = 5;
+    private static final byte CHUNK = 6;
+
+    /** The size of a frame's length and checksum, in bytes. */
+    private static final int FRAME_HEADER_BYTES = 8;
+
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+    private static final String CHECKPOINT_SUFFIX = ".lvl";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+    private static final String LOCK_FILE = "lock";
+
+    /** The directory holding the checkpoint and journal files. */
+    private final Path directory;
+
+    /** The directories locked by the journals of this process. */
+    private static final Set<Path> LOCKED_DIRECTORIES = new HashSet<>();
+
+    /** The file locked while the journal is open, and the lock on it. */
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+
+    /** The absolute path of the directory, as it's held in the locked directories. */
+    private final Path lockedDirectory;
+
+    /** Creates snapshots of the level for checkpoints. Only called from the thread appending records. */
+    private final Supplier<LevelData> snapshotter;
+
+    /** Writes the appended records and checkpoints to disk. */
+    private final ScheduledExecutorService flusher;
+
+    /** Holds appended records until they are written to disk. Guarded by {@link #segments}. */
+    private ByteBuffer pending;
+
+    /** Completed runs of records, each followed by the start of a new generation. Guarded by itself. */
+    private final ArrayDeque<Segment> segments;
+
+    /** The palette of the level, and how many of its entries have been appended. */
+    private Palette palette;
+    private int journaledPalette;
+
+    /** The current generation, and the number of bytes appended to its journal so far. */
+    private int generation;
+    private long journaledBytes;
+
+    /** The journal file being written to. Only accessed by the flusher, until it has stopped. */
+    private FileChannel channel;
+
+    /** Set once writing to disk has failed, after which the journal stops recording. */
+    private volatile boolean failed;
+
+    /** Holds a single encoded chunk while it is appended. */
+    private final ByteBuffer chunkBuffer;
+
+    /**
+     * Starts a journal in a directory, locking it. Nothing is recorded until {@link #checkpoint(Palette)} is first
+     * called, so the files of a previous session can still be recovered in the meantime.
+     *
+     * @param directory The directory to keep the checkpoint and journal files in. Created if it doesn't exist.
+     * @param snapshotter Creates a snapshot of the level whenever a checkpoint is needed.
+     * @throws IOException Thrown if the directory can't be created or read, or is locked by another journal.
+     */
+    public Journal(Path directory, Supplier<LevelData> snapshotter) throws IOException {
+        this.directory = directory;
+        this.snapshotter = snapshotter;
+
+        Files.createDirectories(directory);
+
+        // Closing any channel to the lock file releases every lock this process holds on it, so journals in the same
+        // process are kept apart without opening it twice
+        lockedDirectory = directory.toAbsolutePath().normalize();
+        synchronized (LOCKED_DIRECTORIES) {
+            if (!LOCKED_DIRECTORIES.add(lockedDirectory)) throw inUse(directory);
+        }
+
+        FileChannel opened = null;
+        FileLock acquired = null;
+        try {
+            opened = FileChannel.open(
+                    directory.resolve(LOCK_FILE), StandardOpenOption.WRITE, StandardOpenOption.CREATE
+            );
+            acquired = opened.tryLock();
+
+            // Another process holds the lock
+            if (acquired == null) throw inUse(directory);
+
+            // Continue on from the generations of any previous session, so that they're only removed once replaced
+            int[] generations = listGenerations(directory, JOURNAL_PREFIX, JOURNAL_SUFFIX);
+            int[] checkpoints = listGenerations(directory, CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+            generation = Math.max(
+                    (generations.length > 0) ? generations[generations.length - 1] : 0,
+                    (checkpoints.length > 0) ? checkpoints[checkpoints.length - 1] : 0
+            );
+        } catch (IOException e) {
+            if (opened != null) opened.close(); // Releases the lock
+            synchronized (LOCKED_DIRECTORIES) {
+                LOCKED_DIRECTORIES.remove(lockedDirectory);
+            }
+            throw e;
+        }
+        lockChannel = opened;
+        lock = acquired;
+
+        pending = ByteBuffer.allocate(64 * 1024);
+        segments = new ArrayDeque<>();
+        chunkBuffer = ByteBuffer.allocate(ChunkCodec.MAX_BYTES);
+        palette = null;
+        failed = false;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Journal flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a new generation with a checkpoint of the level. Should be called whenever the level is replaced as a
+     * whole (e.g., when a level file is opened). The checkpoint is written in the background.
+     *
+     * @param palette The level's palette, which is checked for new entries whenever a record is appended.
+     */
+    public void checkpoint(Palette palette) {
+        if (failed) return;
+
+        LevelData snapshot = snapshotter.get();
+        this.palette = palette;
+        journaledPalette = snapshot.palette.size();
+        journaledBytes = 0;
+        generation++;
+
+        synchronized (segments) {
+            segments.add(new Segment(drain(), generation, snapshot));
+        }
+
+        flusher.execute(this::flush);
+    }
+
+    /**
+     * Records that a cell was changed.
+     *
+     * @param layer The index of the cell's layer.
+     * @param x The x coordinate of the cell in level coordinates.
+     * @param y The y coordinate of the cell in level coordinates.
+     * @param index The palette index of the cell's new tile.
+     */
+    public void setCell(int layer, int x, int y, int index) {
+        append(() -> {
+            appendPalette();
+            ensure(1 + Varint.MAX_BYTES * 4);
+            pending.put(CELL);
+            Varint.write(pending, layer);
+            Varint.write(pending, x);
+            Varint.write(pending, y);
+            Varint.write(pending, index);
+        });
+    }
+
+    /**
+     * Records that a layer was inserted, along with all of its cells.
+     *
+     * @param index The index the layer was inserted at.
+     * @param layer The layer.
+     */
+    public void addLayer(int index, Layer layer) {
+        append(() -> {
+            appendPalette();
+            byte[] name = layer.getName().getBytes(StandardCharsets.UTF_8);
+            ensure(1 + Varint.MAX_BYTES * 4 + name.length);
+            pending.put(LAYER_ADD);
+            Varint.write(pending, index);
+            Varint.write(pending, name.length);
+            pending.put(name);
+            Varint.write(pending, Varint.zigzag(layer.getOriginX()));
+            Varint.write(pending, Varint.zigzag(layer.getOriginY()));
+
+            for (long key : layer.getChunkKeys()) {
+                appendChunk(index, layer, key);
+            }
+        });
+    }
+
+    /**
+     * Records that a layer was removed.
+     *
+     * @param index The index of the layer.
+     */
+    public void removeLayer(int index) {
+        append(() -> {
+            ensure(1 + Varint.MAX_BYTES);
+            pending.put(LAYER_REMOVE);
+            Varint.write(pending, index);
+        });
+    }
+
+    /**
+     * Records that every layer was resized (see {@link Layer#resize(int, int, int, int)}).
+     *
+     * @param width The new number of tiles in the horizontal direction.
+     * @param height The new number of tiles in the vertical direction.
+     * @param xShift How many tiles the existing cells were moved to the right.
+     * @param yShift How many tiles the existing cells were moved down.
+     */
+    public void resize(int width, int height, int xShift, int yShift) {
+        append(() -> {
+            ensure(1 + Varint.MAX_BYTES * 4);
+            pending.put(RESIZE);
+            Varint.write(pending, width);
+            Varint.write(pending, height);
+            Varint.write(pending, Varint.zigzag(xShift));
+            Varint.write(pending, Varint.zigzag(yShift));
+        });
+    }
+
+    /**
+     * Records that cells which were cropped off a layer were put back (see {@link Layer#restore(Layer.Cropped)}).
+     *
+     * @param index The index of the layer.
+     * @param layer The layer.
+     * @param cropped The cells which were put back.
+     */
+    public void restore(int index, Layer layer, Layer.Cropped cropped) {
+        append(() -> {
+            appendPalette();
+            for (long key : cropped.getChunkKeys()) {
+                appendChunk(index, layer, key);
+            }
+        });
+    }
+
+    /**
+     * Writes every appended record to disk and stops the journal. The checkpoint and journal files are only kept if
+     * the editor isn't shutting down normally, so that the next session offers to restore the level only after a
+     * crash.
+     *
+     * @param clean Whether the editor is shutting down normally, in which case the files are removed.
+     */
+    public void close(boolean clean) {
+        if (flusher.isShutdown()) return;
+
+        palette = null;
+        flusher.execute(this::flush);
+        flusher.shutdown();
+
+        boolean flushed = false;
+        try {
+            flushed = flusher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Once the flusher has stopped, the files can't be written to anymore
+        if (flushed) {
+            try {
+                if (channel != null) channel.close();
+                channel = null;
+
+                if (clean) {
+                    for (int old : listGenerations(directory, JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+                        Files.deleteIfExists(directory.resolve(JOURNAL_PREFIX + old + JOURNAL_SUFFIX));
+                    }
+                    for (int old : listGenerations(directory, CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX)) {
+                        Files.deleteIfExists(directory.resolve(CHECKPOINT_PREFIX + old + CHECKPOINT_SUFFIX));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error: unable to close autosave: " + e.getMessage());
+            }
+        }
+
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error: unable to unlock autosave: " + e.getMessage());
+        }
+
+        synchronized (LOCKED_DIRECTORIES) {
+            LOCKED_DIRECTORIES.remove(lockedDirectory);
+        }
+    }
+
+    /**
+     * @return The exception thrown when a directory is locked by another journal.
+     */
+    private static IOException inUse(Path directory) {
+        return new IOException("The autosave directory is in use by another instance of the editor: " + directory);
+    }
+
+    /**
+     * @return Whether records are currently being appended.
+     */
+    private boolean isRecording() {
+        return (palette != null) && !failed;
+    }
+
+    /**
+     * Appends a record for each palette entry which was added since the last record.
+     */
+    private void appendPalette() {
+        while (journaledPalette < palette.size()) {
+            Tile tile = palette.get(journaledPalette++);
+
+            byte[] tilesetID = tile.getTilesetID().getBytes(StandardCharsets.UTF_8);
+            ensure(1 + Varint.MAX_BYTES * 3 + tilesetID.length);
+            pending.put(PALETTE);
+            Varint.write(pending, tilesetID.length);
+            pending.put(tilesetID);
+            Varint.write(pending, tile.getSpriteIndex());
+            Varint.write(pending, tile.getFlags());
+        }
+    }
+
+    /**
+     * Appends a record holding the entire contents of one of a layer's chunks.
+     */
+    private void appendChunk(int index, Layer layer, long key) {
+        Chunk chunk = layer.getChunk(Layer.keyX(key), Layer.keyY(key));
+        if (chunk == null) chunk = new Chunk();
+
+        chunkBuffer.clear();
+        ChunkCodec.encode(chunk, chunkBuffer);
+        chunkBuffer.flip();
+
+        ensure(1 + Varint.MAX_BYTES * 4 + chunkBuffer.remaining());
+        pending.put(CHUNK);
+        Varint.write(pending, index);
+        Varint.write(pending, Varint.zigzag(Layer.keyX(key)));
+        Varint.write(pending, Varint.zigzag(Layer.keyY(key)));
+        Varint.write(pending, chunkBuffer.remaining());
+        pending.put(chunkBuffer);
+    }
+
+    /**
+     * Makes sure the pending buffer has room for the given number of bytes, growing it if it doesn't.
+     */
+    private void ensure(int bytes) {
+        if (pending.remaining() >= bytes) return;
+
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+        pending.flip();
+        grown.put(pending);
+        pending = grown;
+    }
+
+    /**
+     * Appends the records describing a single change, then starts a new generation if the current generation's
+     * journal has grown large enough. The checkpoint is only taken once the change's records have been appended, so
+     * that it includes the change while the change's records stay in the previous generation.
+     *
+     * @param records Appends the records to {@link #pending}.
+     */
+    private void append(Runnable records) {
+        if (!isRecording()) return;
+
+        synchronized (segments) {
+            int start = pending.position();
+            records.run();
+            journaledBytes += pending.position() - start;
+        }
+
+        if (journaledBytes >= COMPACT_BYTES) checkpoint(palette);
+    }
+
+    /**
+     * Removes and returns the pending records. Must be called while holding the lock on {@link #segments}.
+     */
+    private byte[] drain() {
+        byte[] records = Arrays.copyOf(pending.array(), pending.position());
+        pending.clear();
+
+        return records;
+    }
+
+    /**
+     * Writes the pending records and any new checkpoints to disk, then syncs the journal file. Runs on the flusher.
+     */
+    private void flush() {
+        if (failed) return;
+
+        try {
+            while (true) {
+                Segment segment;
+                byte[] records;
+
+                synchronized (segments) {
+                    segment = segments.poll();
+                    records = (segment != null) ? segment.records : drain();
+                }
+
+                writeFrame(records);
+
+                if (segment == null) {
+                    if (channel != null) channel.force(false);
+                    return;
+                }
+
+                startGeneration(segment);
+            }
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("Error: autosave stopped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Appends a frame of records to the current journal file.
+     */
+    private void writeFrame(byte[] records) throws IOException {
+        if ((records.length == 0) || (channel == null)) return;
+
+        CRC32 crc = new CRC32();
+        crc.update(records);
+
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + records.length);
+        frame.putInt(records.length);
+        frame.putInt((int) crc.getValue());
+        frame.put(records);
+        frame.flip();
+
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * Finishes the current journal file, then starts a new generation with a checkpoint and removes every older
+     * generation. Runs on the flusher.
+     */
+    private void startGeneration(Segment segment) throws IOException {
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+        }
+
+        channel = FileChannel.open(
+                directory.resolve(JOURNAL_PREFIX + segment.generation + JOURNAL_SUFFIX),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING
+        );
+        LevelWriter.write(
+                segment.snapshot, directory.resolve(CHECKPOINT_PREFIX + segment.generation + CHECKPOINT_SUFFIX)
+        );
+
+        // The new checkpoint replaces everything before it
+        for (int old : listGenerations(directory, JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+            if (old < segment.generation) {
+                Files.deleteIfExists(directory.resolve(JOURNAL_PREFIX + old + JOURNAL_SUFFIX));
+            }
+        }
+        for (int old : listGenerations(directory, CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX)) {
+            if (old < segment.generation) {
+                Files.deleteIfExists(directory.resolve(CHECKPOINT_PREFIX + old + CHECKPOINT_SUFFIX));
+            }
+        }
+    }
+
+    /**
+     * Recovers the level recorded by a previous session, by loading its newest checkpoint and replaying every journal
+     * file written since. The palette's tiles are left unresolved. Must be called before the first checkpoint, which
+     * replaces the previous session's files.
+     *
+     * @return The recovered level, or null if there is nothing to recover.
+     * @throws IOException Thrown if the newest checkpoint can't be read.
+     */
+    public LevelData recover() throws IOException {
+        int[] checkpoints = listGenerations(directory, CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX);
+        if (checkpoints.length == 0) return null;
+
+        int first = checkpoints[checkpoints.length - 1];
+        LevelData checkpoint = LevelReader.read(directory.resolve(CHECKPOINT_PREFIX + first + CHECKPOINT_SUFFIX));
+        Replay replay = new Replay(checkpoint);
+
+        for (int generation : listGenerations(directory, JOURNAL_PREFIX, JOURNAL_SUFFIX)) {
+            if (generation < first) continue;
+
+            // A journal which ends early was being written during a crash, so nothing after it can be trusted
+            if (!replay.apply(Files.readAllBytes(directory.resolve(JOURNAL_PREFIX + generation + JOURNAL_SUFFIX)))) {
+                break;
+            }
+        }
+
+        return replay.toLevel();
+    }
+
+    /**
+     * @return The generations of the files in a directory with the given prefix and suffix, in ascending order.
+     */
+    private static int[] listGenerations(Path directory, String prefix, String suffix) throws IOException {
+        ArrayList<Integer> generations = new ArrayList<>();
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+
+                try {
+                    generations.add(Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+
+        int[] result = new int[generations.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = generations.get(i);
+        }
+        Arrays.sort(result);
+
+        return result;
+    }
+
+    /**
+     * The records appended before a new generation was started, and the checkpoint which starts it.
+     */
+    private static class Segment {
+        private final byte[] records;
+        private final int generation;
+        private final LevelData snapshot;
+
+        private Segment(byte[] records, int generation, LevelData snapshot) {
+            this.records = records;
+            this.generation = generation;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * Applies journal records to a level loaded from a checkpoint.
+     */
+    private static class Replay {
+        private final LevelData checkpoint;
+        private final ArrayList<Layer> layers;
+        private int width, height;
+
+        private Replay(LevelData checkpoint) {
+            this.checkpoint = checkpoint;
+            layers = new ArrayList<>(Arrays.asList(checkpoint.layers));
+            width = checkpoint.width;
+            height = checkpoint.height;
+        }
+
+        /**
+         * Applies every intact frame of a journal file.
+         *
+         * @return Whether the whole file was intact.
+         */
+        private boolean apply(byte[] journal) {
+            ByteBuffer buffer = ByteBuffer.wrap(journal);
+
+            while (buffer.remaining() >= FRAME_HEADER_BYTES) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if ((length < 0) || (length > buffer.remaining())) return false;
+
+                CRC32 crc = new CRC32();
+                crc.update(journal, buffer.position(), length);
+                if ((int) crc.getValue() != checksum) return false;
+
+                ByteBuffer records = buffer.duplicate();
+                records.limit(buffer.position() + length);
+                buffer.position(buffer.position() + length);
+
+                try {
+                    while (records.hasRemaining()) {
+                        applyRecord(records);
+                    }
+                } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+                         | NegativeArraySizeException e) {
+                    return false;
+                }
+            }
+
+            return !buffer.hasRemaining();
+        }
+
+        private void applyRecord(ByteBuffer records) {
+            byte type = records.get();
+
+            switch (type) {
+                case PALETTE: {
+                    String tilesetID = readString(records);
+                    int spriteIndex = Varint.read(records);
+                    int flags = Varint.read(records);
+                    checkpoint.palette.indexOf(new Tile(tilesetID, spriteIndex, flags));
+                    break;
+                }
+                case CELL: {
+                    Layer layer = layers.get(Varint.read(records));
+                    int x = Varint.read(records);
+                    int y = Varint.read(records);
+                    int index = Varint.read(records);
+                    if ((x >= width) || (y >= height) || (index >= checkpoint.palette.size())) {
+                        throw new IllegalArgumentException("Invalid cell record");
+                    }
+
+                    layer.set(x, y, index);
+                    break;
+                }
+                case LAYER_ADD: {
+                    int index = Varint.read(records);
+                    String name = readString(records);
+                    int originX = Varint.unzigzag(Varint.read(records));
+                    int originY = Varint.unzigzag(Varint.read(records));
+                    layers.add(index, new Layer(name, width, height, originX, originY));
+                    break;
+                }
+                case LAYER_REMOVE:
+                    layers.remove(Varint.read(records));
+                    break;
+                case RESIZE: {
+                    int newWidth = Varint.read(records);
+                    int newHeight = Varint.read(records);
+                    int xShift = Varint.unzigzag(Varint.read(records));
+                    int yShift = Varint.unzigzag(Varint.read(records));
+
+                    for (Layer layer : layers) {
+                        layer.resize(newWidth, newHeight, xShift, yShift);
+                    }
+                    width = newWidth;
+                    height = newHeight;
+                    break;
+                }
+                case CHUNK: {
+                    Layer layer = layers.get(Varint.read(records));
+                    int chunkX = Varint.unzigzag(Varint.read(records));
+                    int chunkY = Varint.unzigzag(Varint.read(records));
+                    int length = Varint.read(records);
+
+                    ByteBuffer payload = records.duplicate();
+                    payload.limit(records.position() + length);
+                    records.position(records.position() + length);
+
+                    layer.putChunk(Layer.key(chunkX, chunkY), ChunkCodec.decode(payload, checkpoint.palette.size()));
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown record type " + type);
+            }
+        }
+
+        private LevelData toLevel() {
+            return new LevelData(
+                    checkpoint.palette, layers.toArray(new Layer[0]), checkpoint.levelName, width, height
+            );
+        }
+
+        private static String readString(ByteBuffer buffer) {
+            byte[] bytes = new byte[Varint.read(buffer)];
+            buffer.get(bytes);
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,528 @@
+package Serial;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * A single layer of a level's grid. Each cell holds the palette index of its tile. The cells are stored sparsely in
+ * fixed-size chunks, which are only created once a tile is placed in them and are dropped once they are empty, so
+ * the memory used by a layer depends on its painted area rather than its size.
+ * <p>
+ * Chunks are positioned in storage coordinates, which are offset from level coordinates by the layer's origin. This
+ * allows the level to be resized by moving the origin instead of moving every cell.
+ * <p>
+ * A layer opened from a level file may also have chunks which are still in the file. These are loaded through the
+ * layer's {@link ChunkSource} the first time they are accessed, and may be paged back out while they are unchanged.
+ */
+public class Layer implements Serializable {
+    private static final long serialVersionUID = 6L;
+
+    /** The name of the layer, as shown to the user. */
+    private String name;
+
+    /** The non-empty chunks of the layer which are in memory, keyed by their chunk coordinates. */
+    private final HashMap<Long, Chunk> chunks;
+
+    /**
+     * The locations of the chunks whose contents are unchanged from the level file, keyed by their chunk coordinates.
+     * These chunks may or may not also be in memory. Is null if the layer wasn't opened from a file.
+     */
+    private HashMap<Long, ChunkSource.Location> locations;
+
+    /** The level file which the chunks in {@link #locations} are loaded from. */
+    private transient ChunkSource source;
+
+    /** Whether the layer is a read-only snapshot of another layer. */
+    private transient boolean snapshot;
+
+    /** The width/height of the layer in number of tiles. */
+    private int width, height;
+
+    /** The storage coordinates of the level's top-left cell. */
+    private int originX, originY;
+
+    /**
+     * Instantiates an empty layer.
+     *
+     * @param name The name of the layer.
+     * @param width The number of tiles in the horizontal direction.
+     * @param height The number of tiles in the vertical direction.
+     */
+    public Layer(String name, int width, int height) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        originX = 0;
+        originY = 0;
+        chunks = new HashMap<>();
+        locations = null;
+        source = null;
+        snapshot = false;
+    }
+
+    /**
+     * Instantiates an empty layer with a specified origin. Used when loading a layer from a file.
+     *
+     * @param name The name of the layer.
+     * @param width The number of tiles in the horizontal direction.
+     * @param height The number of tiles in the vertical direction.
+     * @param originX The x coordinate of the level's left edge in storage coordinates.
+     * @param originY The y coordinate of the level's top edge in storage coordinates.
+     */
+    Layer(String name, int width, int height, int originX, int originY) {
+        this(name, width, height);
+        this.originX = originX;
+        this.originY = originY;
+    }
+
+    /**
+     * Instantiates a copy of another layer. Chunks which are unchanged from the level file aren't copied, and are
+     * loaded from the file again instead.
+     *
+     * @param layer The layer to copy.
+     */
+    public Layer(Layer layer) {
+        name = layer.name;
+        width = layer.width;
+        height = layer.height;
+        originX = layer.originX;
+        originY = layer.originY;
+        chunks = new HashMap<>();
+        source = layer.source;
+        if (layer.locations != null) {
+            // The copy's chunks are paged in and out separately from the original's
+            locations = new HashMap<>(layer.locations.size() * 2);
+            for (Map.Entry<Long, ChunkSource.Location> entry : layer.locations.entrySet()) {
+                locations.put(entry.getKey(), entry.getValue().copyFor(this));
+            }
+        }
+
+        for (Map.Entry<Long, Chunk> entry : layer.chunks.entrySet()) {
+            if ((locations != null) && locations.containsKey(entry.getKey())) continue;
+
+            chunks.put(entry.getKey(), new Chunk(entry.getValue()));
+        }
+    }
+
+    /**
+     * Creates a read-only snapshot of the layer, such as for saving it in the background. The snapshot shares the
+     * layer's chunks instead of copying them, and the layer copies each shared chunk the next time it changes it, so
+     * taking a snapshot only costs a map copy. A snapshot can be read from any thread, but can't be changed.
+     *
+     * @return The snapshot.
+     */
+    public Layer snapshot() {
+        Layer copy = new Layer(name, width, height, originX, originY);
+        copy.source = source;
+        copy.locations = (locations == null) ? null : new HashMap<>(locations);
+        copy.snapshot = true;
+
+        for (Map.Entry<Long, Chunk> entry : chunks.entrySet()) {
+            entry.getValue().share();
+            copy.chunks.put(entry.getKey(), entry.getValue());
+        }
+
+        return copy;
+    }
+
+    /**
+     * Returns a chunk which can be read from any thread while the layer keeps changing, such as for rendering it in
+     * the background. Like a snapshot, the chunk is shared rather than copied, and the layer copies it the next time it
+     * changes it.
+     *
+     * @param chunkX The x coordinate of the chunk in storage coordinates, in number of chunks.
+     * @param chunkY The y coordinate of the chunk in storage coordinates, in number of chunks.
+     * @return The chunk, or null if it is empty.
+     */
+    public Chunk shareChunk(int chunkX, int chunkY) {
+        Chunk chunk = chunkAt(key(chunkX, chunkY));
+        if (chunk != null) chunk.share();
+
+        return chunk;
+    }
+
+    /**
+     * @param x The x coordinate of the cell in level coordinates.
+     * @param y The y coordinate of the cell in level coordinates.
+     * @return The palette index of the cell's tile.
+     */
+    public int get(int x, int y) {
+        x += originX;
+        y += originY;
+
+        Chunk chunk = chunkAt(key(x >> Chunk.SHIFT, y >> Chunk.SHIFT));
+        if (chunk == null) return Palette.EMPTY;
+
+        return chunk.get(x & Chunk.MASK, y & Chunk.MASK);
+    }
+
+    /**
+     * Sets the palette index of a cell. Creates the cell's chunk if it didn't exist, and drops it if it is now empty.
+     *
+     * @param x The x coordinate of the cell in level coordinates.
+     * @param y The y coordinate of the cell in level coordinates.
+     * @param index The palette index of the cell's new tile.
+     * @return The palette index of the cell's previous tile.
+     */
+    public int set(int x, int y, int index) {
+        x += originX;
+        y += originY;
+
+        long key = key(x >> Chunk.SHIFT, y >> Chunk.SHIFT);
+        Chunk chunk = writableChunkAt(key);
+
+        if (chunk == null) {
+            if (index == Palette.EMPTY) return Palette.EMPTY;
+
+            chunk = new Chunk();
+            chunks.put(key, chunk);
+        }
+
+        int previous = chunk.set(x & Chunk.MASK, y & Chunk.MASK, index);
+        if (previous != index) markChanged(key);
+        if (chunk.isEmpty()) chunks.remove(key);
+
+        return previous;
+    }
+
+    /**
+     * @param chunkX The x coordinate of the chunk in storage coordinates, in number of chunks.
+     * @param chunkY The y coordinate of the chunk in storage coordinates, in number of chunks.
+     * @return The chunk at the given chunk coordinates, or null if it is empty.
+     */
+    public Chunk getChunk(int chunkX, int chunkY) {
+        return chunkAt(key(chunkX, chunkY));
+    }
+
+    /**
+     * Puts a chunk into the layer, replacing any chunk already at its coordinates. Used when loading a layer from a
+     * file.
+     *
+     * @param key The key of the chunk's storage coordinates.
+     * @param chunk The chunk. Empty chunks are ignored.
+     */
+    void putChunk(long key, Chunk chunk) {
+        if (chunk.isEmpty()) {
+            chunks.remove(key);
+        } else {
+            chunks.put(key, chunk);
+        }
+    }
+
+    /**
+     * Sets the level file which the layer's chunks are loaded from on demand.
+     *
+     * @param source The level file.
+     */
+    void setSource(ChunkSource source) {
+        this.source = source;
+        locations = new HashMap<>();
+    }
+
+    /**
+     * Records where a chunk which hasn't been loaded yet is located in the layer's level file.
+     *
+     * @param key The key of the chunk's storage coordinates.
+     * @param offset The position of the chunk's payload in the file.
+     * @param length The length of the chunk's payload in bytes.
+     */
+    void putLocation(long key, long offset, int length) {
+        locations.put(key, new ChunkSource.Location(this, key, offset, length));
+    }
+
+    /**
+     * Pages out a chunk which is unchanged from the level file. It will be loaded again once it is next accessed.
+     *
+     * @param key The key of the chunk's storage coordinates.
+     */
+    void unload(long key) {
+        if ((locations != null) && locations.containsKey(key)) chunks.remove(key);
+    }
+
+    /**
+     * @return The keys of every non-empty chunk in the layer, including those which haven't been loaded yet.
+     */
+    public long[] getChunkKeys() {
+        HashSet<Long> keys = new HashSet<>(chunks.keySet());
+        if (locations != null) keys.addAll(locations.keySet());
+
+        long[] result = new long[keys.size()];
+        int i = 0;
+        for (long key : keys) {
+            result[i++] = key;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns a chunk, loading it from the level file first if it hasn't been loaded yet.
+     *
+     * @param key The key of the chunk's storage coordinates.
+     * @return The chunk, or null if it is empty.
+     */
+    private Chunk chunkAt(long key) {
+        Chunk chunk = chunks.get(key);
+        if (locations == null) return chunk;
+
+        ChunkSource.Location location = locations.get(key);
+        if (location == null) return chunk;
+
+        // Snapshots may be read from other threads, so they decode chunks without keeping them
+        if (snapshot) return (chunk != null) ? chunk : source.decode(location);
+
+        if (chunk == null) {
+            chunk = source.decode(location);
+
+            // Malformed chunks are left empty
+            if (chunk == null) return null;
+            chunks.put(key, chunk);
+        }
+
+        source.touch(location);
+
+        return chunk;
+    }
+
+    /**
+     * Returns a chunk which is about to be changed, replacing it with a copy first if it is shared with a snapshot.
+     *
+     * @param key The key of the chunk's storage coordinates.
+     * @return The chunk, or null if it is empty.
+     * @throws IllegalStateException Thrown if the layer is a snapshot.
+     */
+    private Chunk writableChunkAt(long key) {
+        if (snapshot) throw new IllegalStateException("Layer snapshots can't be changed");
+
+        Chunk chunk = chunkAt(key);
+        if ((chunk != null) && chunk.isShared()) {
+            chunk = new Chunk(chunk);
+            chunks.put(key, chunk);
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Marks a chunk as changed from the level file, so that it is never paged out or loaded from the file again.
+     *
+     * @param key The key of the chunk's storage coordinates.
+     */
+    private void markChanged(long key) {
+        ChunkSource.Location location = (locations == null) ? null : locations.remove(key);
+        if (location != null) source.forget(location);
+    }
+
+    /**
+     * Resizes the layer by moving its origin. Chunks which end up completely outside the new bounds are dropped, and
+     * only the cells of chunks which straddle the new bounds are visited.
+     *
+     * @param newWidth The new number of tiles in the horizontal direction.
+     * @param newHeight The new number of tiles in the vertical direction.
+     * @param xShift How many tiles the existing cells are moved to the right.
+     * @param yShift How many tiles the existing cells are moved down.
+     * @return The cells which were cropped off. They can be put back with {@link #restore(Cropped)}.
+     * @throws IllegalStateException Thrown if the layer is a snapshot.
+     */
+    public Cropped resize(int newWidth, int newHeight, int xShift, int yShift) {
+        if (snapshot) throw new IllegalStateException("Layer snapshots can't be changed");
+
+        Cropped cropped = new Cropped();
+
+        // Whether any of the existing cells end up outside the new bounds
+        boolean isCropped = (xShift < 0) || (yShift < 0)
+                || (xShift + width > newWidth) || (yShift + height > newHeight);
+
+        originX -= xShift;
+        originY -= yShift;
+        width = newWidth;
+        height = newHeight;
+
+        if (!isCropped) return cropped;
+
+        // The new bounds in storage coordinates
+        int minX = originX;
+        int minY = originY;
+        int maxX = originX + width;
+        int maxY = originY + height;
+
+        for (long key : getChunkKeys()) {
+            int startX = keyX(key) << Chunk.SHIFT;
+            int startY = keyY(key) << Chunk.SHIFT;
+            int endX = startX + Chunk.SIZE;
+            int endY = startY + Chunk.SIZE;
+
+            // The chunk is completely within the new bounds
+            if ((startX >= minX) && (startY >= minY) && (endX <= maxX) && (endY <= maxY)) continue;
+
+            // The chunk is completely outside the new bounds
+            if ((endX <= minX) || (endY <= minY) || (startX >= maxX) || (startY >= maxY)) {
+                ChunkSource.Location location = (locations == null) ? null : locations.remove(key);
+                Chunk chunk = chunks.remove(key);
+
+                // Chunks which are unchanged from the level file only need their location to be put back
+                if (location != null) {
+                    cropped.locations.put(key, location);
+                    source.forget(location);
+                } else {
+                    cropped.chunks.put(key, chunk);
+                }
+
+                continue;
+            }
+
+            // Move the cells of the chunk which are outside the new bounds into a chunk of cropped cells
+            Chunk chunk = writableChunkAt(key);
+            Chunk croppedChunk = new Chunk();
+            for (int y = 0; y < Chunk.SIZE; y++) {
+                boolean rowOutside = (startY + y < minY) || (startY + y >= maxY);
+
+                for (int x = 0; x < Chunk.SIZE; x++) {
+                    if (rowOutside || (startX + x < minX) || (startX + x >= maxX)) {
+                        croppedChunk.set(x, y, chunk.set(x, y, Palette.EMPTY));
+                    }
+                }
+            }
+
+            if (!croppedChunk.isEmpty()) {
+                cropped.chunks.put(key, croppedChunk);
+                markChanged(key);
+            }
+            if (chunk.isEmpty()) chunks.remove(key);
+        }
+
+        return cropped;
+    }
+
+    /**
+     * Puts back cells which were cropped off by {@link #resize(int, int, int, int)}. The layer must have been resized
+     * back to the bounds it had before they were cropped.
+     *
+     * @param cropped The cropped cells.
+     */
+    public void restore(Cropped cropped) {
+        if (locations != null) locations.putAll(cropped.locations);
+
+        for (Map.Entry<Long, Chunk> entry : cropped.chunks.entrySet()) {
+            Chunk chunk = writableChunkAt(entry.getKey());
+
+            if (chunk == null) {
+                chunks.put(entry.getKey(), new Chunk(entry.getValue()));
+                continue;
+            }
+
+            Chunk croppedChunk = entry.getValue();
+            for (int y = 0; y < Chunk.SIZE; y++) {
+                for (int x = 0; x < Chunk.SIZE; x++) {
+                    int index = croppedChunk.get(x, y);
+                    if (index != Palette.EMPTY) chunk.set(x, y, index);
+                }
+            }
+
+            markChanged(entry.getKey());
+        }
+    }
+
+    /**
+     * @return The approximate number of bytes the layer's chunks take up in memory.
+     */
+    public long getSize() {
+        return (long) chunks.size() * Chunk.BYTES;
+    }
+
+    /**
+     * @return The name of the layer.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The number of tiles in the horizontal direction.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The number of tiles in the vertical direction.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return The x coordinate of the level's left edge in storage coordinates.
+     */
+    public int getOriginX() {
+        return originX;
+    }
+
+    /**
+     * @return The y coordinate of the level's top edge in storage coordinates.
+     */
+    public int getOriginY() {
+        return originY;
+    }
+
+    /**
+     * @param chunkX The x coordinate of a chunk, in number of chunks.
+     * @param chunkY The y coordinate of a chunk, in number of chunks.
+     * @return The key of the chunk within the layer's chunk map.
+     */
+    public static long key(int chunkX, int chunkY) {
+        return ((long) chunkX << 32) | (chunkY & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param key The key of a chunk.
+     * @return The x coordinate of the chunk, in number of chunks.
+     */
+    public static int keyX(long key) {
+        return (int) (key >> 32);
+    }
+
+    /**
+     * @param key The key of a chunk.
+     * @return The y coordinate of the chunk, in number of chunks.
+     */
+    public static int keyY(long key) {
+        return (int) key;
+    }
+
+    /**
+     * The cells cropped off a layer when it was resized, keyed by their chunk's storage coordinates.
+     */
+    public static class Cropped {
+        /** Chunks of cropped cells which are in memory. */
+        private final HashMap<Long, Chunk> chunks = new HashMap<>();
+
+        /** Cropped chunks which were unchanged from the level file, and can be loaded from it again. */
+        private final HashMap<Long, ChunkSource.Location> locations = new HashMap<>();
+
+        /**
+         * @return The keys of the chunks which cells were cropped off.
+         */
+        long[] getChunkKeys() {
+            long[] keys = new long[chunks.size() + locations.size()];
+            int i = 0;
+            for (long key : chunks.keySet()) {
+                keys[i++] = key;
+            }
+            for (long key : locations.keySet()) {
+                keys[i++] = key;
+            }
+
+            return keys;
+        }
+
+        /**
+         * @return The approximate number of bytes the cropped cells take up in memory.
+         */
+        public long getSize() {
+            return (long) chunks.size() * Chunk.BYTES + locations.size() * 16L;
+        }
+    }
+}
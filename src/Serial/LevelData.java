@@ -4,21 +4,34 @@ import java.io.Serializable;
 import java.util.ArrayList;
 
 public class LevelData implements Serializable {
-    private static final long serialVersionUID = 1L;
-    public Tile[][][] layers;
+    private static final long serialVersionUID = 2L;
+    public Palette palette;
+    public Layer[] layers;
     public String levelName;
     public int width;
     public int height;
 
-    public LevelData(ArrayList<Tile[][]> layers, String levelName, int width, int height) {
-        this.layers = new Tile[layers.size()][width][height];
+    /**
+     * Instantiates a level from the given palette and layers without copying them.
+     */
+    public LevelData(Palette palette, Layer[] layers, String levelName, int width, int height) {
+        this.palette = palette;
+        this.layers = layers;
+        this.levelName = levelName;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Instantiates a level from a copy of the given palette and read-only snapshots of the given layers (see
+     * {@link Layer#snapshot()}). The level can then be read from another thread while the layers are still edited.
+     */
+    public LevelData(Palette palette, ArrayList<Layer> layers, String levelName, int width, int height) {
+        this.palette = new Palette(palette);
+        this.layers = new Layer[layers.size()];
 
         for (int i = 0; i < layers.size(); i++) {
-            for (int x = 0; x < layers.get(i).length; x++) {
-                for (int y = 0; y < layers.get(i)[x].length; y++) {
-                    this.layers[i][x][y] = new Tile(layers.get(i)[x][y]);
-                }
-            }
+            this.layers[i] = layers.get(i).snapshot();
         }
 
         this.levelName = levelName;
@@ -0,0 +1,57 @@
+package Serial;
+
+/**
+ * Constants describing the binary level file format. All multi-byte fixed-size values are big-endian, and most
+ * integers are stored as varints (see {@link Varint}).
+ * <pre>
+ * header:      magic (int), version (short), flags (short)
+ *              level name (string), width (varint), height (varint)
+ * strings:     count (varint), followed by each string
+ * palette:     count (varint), followed by each entry (excluding the empty entry 0):
+ *              tileset ID's index in the string table (varint), sprite index (varint), flags (varint)
+ * chunks:      the payload of every chunk, one after another
+ * index:       layer count (varint), followed by each layer:
+ *              name (string), origin x/y (zigzag varints), chunk count (varint), followed by each chunk:
+ *              chunk x/y in storage coordinates (zigzag varints), payload offset (long varint),
+ *              payload length (varint)
+ * trailer:     index offset (long), index magic (int)
+ * payload:     the chunk's cells, encoded by {@link ChunkCodec}
+ * string:      length in bytes (varint), followed by UTF-8 bytes
+ * </pre>
+ * The index is at the end of the file so that the chunks can be written without knowing their lengths in advance,
+ * and so that a level can be opened by reading only its header and index. Each chunk can then be decoded on its
+ * own straight from the file.
+ * <p>
+ * If the {@link #FLAG_DEFLATE} flag is set, each chunk's payload is additionally compressed with raw DEFLATE (see
+ * {@link java.util.zip.Deflater}), and the index holds the compressed lengths. Chunks are compressed independently,
+ * so they can still be decoded one at a time.
+ * <p>
+ * Version 1 files have no chunks section, index or trailer. Instead, after the palette:
+ * <pre>
+ * layers:      count (varint), followed by each layer:
+ *              name (string), origin x/y (zigzag varints), chunk count (varint), followed by each chunk:
+ *              chunk x/y in storage coordinates (zigzag varints), payload length (varint), payload
+ * </pre>
+ */
+public final class LevelFormat {
+    /** The first four bytes of every level file ("LVLD"). */
+    public static final int MAGIC = 0x4C564C44;
+
+    /** The last four bytes of every indexed level file ("LIDX"). */
+    public static final int INDEX_MAGIC = 0x4C494458;
+
+    /** The size of the trailer at the end of every indexed level file, in bytes. */
+    public static final int TRAILER_BYTES = 12;
+
+    /** The header flag set if every chunk's payload is compressed with DEFLATE. */
+    public static final short FLAG_DEFLATE = 1;
+
+    /** The version of the format written by this editor. */
+    public static final short VERSION = 2;
+
+    /** The first version with a chunk index. */
+    public static final short INDEXED_VERSION = 2;
+
+    private LevelFormat() {
+    }
+}
@@ -0,0 +1,362 @@
+package Serial;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Reads levels from files in the binary level format (see {@link LevelFormat}). A level can either be read in full,
+ * decoding every chunk in parallel, or opened lazily, in which case the file is memory-mapped and each chunk is only
+ * decoded once it is accessed.
+ */
+public class LevelReader {
+    /** The number of chunks below which a decoding task no longer splits itself up. */
+    private static final int CHUNKS_PER_TASK = 64;
+
+    private LevelReader() {
+    }
+
+    /**
+     * Reads a level from a file, decoding every chunk up front. The palette's tiles are left unresolved.
+     *
+     * @param path The path of the file.
+     * @return The level.
+     * @throws IOException Thrown if the file can't be read or isn't a valid level file.
+     */
+    public static LevelData read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // Files which are too large for a single array are mapped instead
+            ByteBuffer[] windows = (channel.size() <= Integer.MAX_VALUE)
+                    ? new ByteBuffer[] {ByteBuffer.wrap(Files.readAllBytes(path))}
+                    : ChunkSource.map(channel);
+
+            Contents contents = parse(windows, channel);
+            ChunkSource source = new ChunkSource(windows, contents.palette.size(), contents.compressed, 0, null);
+
+            // Decode every chunk in parallel
+            Chunk[] chunks = new Chunk[contents.chunkCount];
+            ForkJoinPool.commonPool().invoke(
+                    new DecodeTask(source, contents.chunkOffsets, contents.chunkLengths, chunks, 0, contents.chunkCount)
+            );
+
+            for (int i = 0; i < contents.chunkCount; i++) {
+                contents.layers[contents.chunkLayers[i]].putChunk(contents.chunkKeys[i], chunks[i]);
+            }
+
+            return contents.toLevel();
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+                 | NegativeArraySizeException e) {
+            throw new IOException("Malformed level file: " + path, e);
+        }
+    }
+
+    /**
+     * Opens a level from a file without decoding any of its chunks. The file is memory-mapped, and each chunk is
+     * decoded from it once it is accessed. Unchanged chunks are paged back out once more than
+     * {@link ChunkSource#DEFAULT_CAPACITY} of them are in memory. The palette's tiles are left unresolved.
+     *
+     * @param path The path of the file.
+     * @return The level.
+     * @throws IOException Thrown if the file can't be read or isn't a valid level file.
+     */
+    public static LevelData open(Path path) throws IOException {
+        return open(path, ChunkSource.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens a level from a file without decoding any of its chunks. The file is memory-mapped, and each chunk is
+     * decoded from it once it is accessed. The palette's tiles are left unresolved.
+     *
+     * @param path The path of the file.
+     * @param capacity The maximum number of unchanged chunks kept in memory at once.
+     * @return The level.
+     * @throws IOException Thrown if the file can't be read or isn't a valid level file.
+     */
+    public static LevelData open(Path path, int capacity) throws IOException {
+        return open(path, capacity, null);
+    }
+
+    /**
+     * Opens a level from a file without decoding any of its chunks. The file is memory-mapped, and each chunk is
+     * decoded from it once it is accessed. The palette's tiles are left unresolved.
+     *
+     * @param path The path of the file.
+     * @param capacity The maximum number of unchanged chunks kept in memory at once.
+     * @param onMalformedChunk Notified of a description of each chunk which turns out to be malformed once it is
+     *                         accessed, which is then left empty. May be called from any thread. If null, accessing
+     *                         such a chunk throws an exception instead.
+     * @return The level.
+     * @throws IOException Thrown if the file can't be read or isn't a valid level file.
+     */
+    public static LevelData open(Path path, int capacity, Consumer<String> onMalformedChunk) throws IOException {
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer[] windows = ChunkSource.map(channel);
+            Contents contents = parse(windows, channel);
+            ChunkSource source = new ChunkSource(
+                    windows, contents.palette.size(), contents.compressed, capacity, onMalformedChunk
+            );
+
+            for (Layer layer : contents.layers) {
+                layer.setSource(source);
+            }
+
+            for (int i = 0; i < contents.chunkCount; i++) {
+                contents.layers[contents.chunkLayers[i]].putLocation(
+                        contents.chunkKeys[i], contents.chunkOffsets[i], contents.chunkLengths[i]
+                );
+            }
+
+            return contents.toLevel();
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+                 | NegativeArraySizeException e) {
+            throw new IOException("Malformed level file: " + path, e);
+        }
+    }
+
+    /**
+     * Reads everything from the contents of a level file except for the chunks themselves, which are only located.
+     *
+     * @param windows The contents of the file, in one or more windows (see {@link ChunkSource#map(FileChannel)}).
+     * @param channel The file, which is only read from if it's in more than one window.
+     */
+    private static Contents parse(ByteBuffer[] windows, FileChannel channel) throws IOException {
+        Contents contents = new Contents();
+
+        // The header and palette are read from the first window
+        ByteBuffer buffer = windows[0].duplicate();
+
+        // Header
+        if (buffer.getInt() != LevelFormat.MAGIC) throw new IOException("Not a level file");
+
+        short version = buffer.getShort();
+        if ((version < 1) || (version > LevelFormat.VERSION)) {
+            throw new IOException("Unsupported level file version " + version);
+        }
+
+        short headerFlags = buffer.getShort();
+        contents.compressed = (headerFlags & LevelFormat.FLAG_DEFLATE) != 0;
+
+        contents.levelName = readString(buffer);
+        contents.width = Varint.read(buffer);
+        contents.height = Varint.read(buffer);
+
+        // Strings
+        String[] strings = new String[Varint.read(buffer)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(buffer);
+        }
+
+        // Palette (the empty entry is implied)
+        contents.palette = new Palette();
+        int paletteSize = Varint.read(buffer) + 1;
+        for (int i = 1; i < paletteSize; i++) {
+            String tilesetID = strings[Varint.read(buffer)];
+            int spriteIndex = Varint.read(buffer);
+            int flags = Varint.read(buffer);
+
+            if (contents.palette.indexOf(new Tile(tilesetID, spriteIndex, flags)) != i) {
+                throw new IOException("Duplicate palette entry " + i);
+            }
+        }
+
+        if (version >= LevelFormat.INDEXED_VERSION) {
+            parseIndex(windows, channel, buffer.position(), contents);
+        } else if (windows.length == 1) {
+            scanLayers(buffer, contents);
+        } else {
+            throw new IOException("Level file is too large for version " + version);
+        }
+
+        return contents;
+    }
+
+    /**
+     * Reads the layers and chunk locations from the index at the end of an indexed level file.
+     *
+     * @param windows The contents of the file, in one or more windows.
+     * @param channel The file, which is only read from if it's in more than one window.
+     * @param chunksStart The position of the start of the chunks section.
+     */
+    private static void parseIndex(ByteBuffer[] windows, FileChannel channel, long chunksStart, Contents contents)
+            throws IOException {
+        long size = (windows.length == 1) ? windows[0].limit() : channel.size();
+
+        // Trailer
+        if (size - chunksStart < LevelFormat.TRAILER_BYTES) throw new IOException("Missing level index");
+
+        long trailer = size - LevelFormat.TRAILER_BYTES;
+        ByteBuffer trailerBuffer = region(windows, channel, trailer, LevelFormat.TRAILER_BYTES);
+        long indexOffset = trailerBuffer.getLong();
+        if (trailerBuffer.getInt() != LevelFormat.INDEX_MAGIC) throw new IOException("Missing level index");
+        if ((indexOffset < chunksStart) || (indexOffset > trailer)) throw new IOException("Invalid level index");
+
+        // Index
+        ByteBuffer buffer = region(windows, channel, indexOffset, trailer - indexOffset);
+        contents.layers = new Layer[Varint.read(buffer)];
+
+        for (int i = 0; i < contents.layers.length; i++) {
+            String name = readString(buffer);
+            int originX = Varint.unzigzag(Varint.read(buffer));
+            int originY = Varint.unzigzag(Varint.read(buffer));
+            contents.layers[i] = new Layer(name, contents.width, contents.height, originX, originY);
+
+            int chunks = Varint.read(buffer);
+            for (int j = 0; j < chunks; j++) {
+                int chunkX = Varint.unzigzag(Varint.read(buffer));
+                int chunkY = Varint.unzigzag(Varint.read(buffer));
+                long offset = Varint.readLong(buffer);
+                int length = Varint.read(buffer);
+
+                if ((offset < chunksStart) || (length < 0) || (length > ChunkSource.MAX_PAYLOAD_BYTES)
+                        || (offset + length > indexOffset)) {
+                    throw new IOException("Invalid location for chunk " + chunkX + ", " + chunkY);
+                }
+
+                contents.addChunk(i, Layer.key(chunkX, chunkY), offset, length);
+            }
+        }
+    }
+
+    /**
+     * Returns part of the contents of a level file, positioned at its start.
+     *
+     * @param windows The contents of the file, in one or more windows.
+     * @param channel The file, which the part is mapped from if it's in more than one window.
+     * @param start The position of the start of the part.
+     * @param length The length of the part in bytes.
+     */
+    private static ByteBuffer region(ByteBuffer[] windows, FileChannel channel, long start, long length)
+            throws IOException {
+        if (windows.length == 1) {
+            ByteBuffer region = windows[0].duplicate();
+            region.limit((int) (start + length));
+            region.position((int) start);
+
+            return region;
+        }
+
+        if (length > Integer.MAX_VALUE) throw new IOException("Level index is too large");
+
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+    }
+
+    /**
+     * Locates the chunks of a level file without an index by scanning through its layers. The buffer must be
+     * positioned at the start of the layers section.
+     */
+    private static void scanLayers(ByteBuffer buffer, Contents contents) {
+        contents.layers = new Layer[Varint.read(buffer)];
+
+        for (int i = 0; i < contents.layers.length; i++) {
+            String name = readString(buffer);
+            int originX = Varint.unzigzag(Varint.read(buffer));
+            int originY = Varint.unzigzag(Varint.read(buffer));
+            contents.layers[i] = new Layer(name, contents.width, contents.height, originX, originY);
+
+            int chunks = Varint.read(buffer);
+            for (int j = 0; j < chunks; j++) {
+                int chunkX = Varint.unzigzag(Varint.read(buffer));
+                int chunkY = Varint.unzigzag(Varint.read(buffer));
+                int length = Varint.read(buffer);
+
+                contents.addChunk(i, Layer.key(chunkX, chunkY), buffer.position(), length);
+
+                // Skip over the payload
+                buffer.position(buffer.position() + length);
+            }
+        }
+    }
+
+    /**
+     * Reads a string stored as its length in bytes followed by its UTF-8 bytes.
+     */
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[Varint.read(buffer)];
+        buffer.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The contents of a level file, with the location of each chunk instead of the chunk itself.
+     */
+    private static class Contents {
+        private String levelName;
+        private int width, height;
+        private Palette palette;
+        private Layer[] layers;
+        private boolean compressed;
+
+        /** The layer, key, payload offset and payload length of each chunk. */
+        private int chunkCount = 0;
+        private int[] chunkLayers = new int[16];
+        private long[] chunkKeys = new long[16];
+        private long[] chunkOffsets = new long[16];
+        private int[] chunkLengths = new int[16];
+
+        private void addChunk(int layer, long key, long offset, int length) {
+            if (chunkCount == chunkKeys.length) {
+                chunkLayers = Arrays.copyOf(chunkLayers, chunkCount * 2);
+                chunkKeys = Arrays.copyOf(chunkKeys, chunkCount * 2);
+                chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+                chunkLengths = Arrays.copyOf(chunkLengths, chunkCount * 2);
+            }
+
+            chunkLayers[chunkCount] = layer;
+            chunkKeys[chunkCount] = key;
+            chunkOffsets[chunkCount] = offset;
+            chunkLengths[chunkCount] = length;
+            chunkCount++;
+        }
+
+        private LevelData toLevel() {
+            return new LevelData(palette, layers, levelName, width, height);
+        }
+    }
+
+    /**
+     * Decodes a range of chunks, splitting the range in half and decoding each half in parallel while it is large.
+     */
+    private static class DecodeTask extends RecursiveAction {
+        private final ChunkSource source;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final Chunk[] chunks;
+        private final int start, end;
+
+        private DecodeTask(ChunkSource source, long[] offsets, int[] lengths, Chunk[] chunks, int start, int end) {
+            this.source = source;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.chunks = chunks;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > CHUNKS_PER_TASK) {
+                int middle = (start + end) >>> 1;
+                invokeAll(
+                        new DecodeTask(source, offsets, lengths, chunks, start, middle),
+                        new DecodeTask(source, offsets, lengths, chunks, middle, end)
+                );
+                return;
+            }
+
+            for (int i = start; i < end; i++) {
+                chunks[i] = source.decode(offsets[i], lengths[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package Serial;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+import java.util.zip.Deflater;
+
+/**
+ * Writes levels to files in the binary level format (see {@link LevelFormat}). Chunks are encoded and compressed in
+ * parallel, a batch at a time, and output is buffered and written through a file channel.
+ */
+public class LevelWriter implements Closeable {
+    /**
+     * The compression level used unless another is given. Higher levels barely shrink run-length encoded chunks any
+     * further, but take noticeably longer.
+     */
+    public static final int DEFAULT_COMPRESSION = Deflater.BEST_SPEED;
+
+    /** The size of the output buffer, in bytes. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The number of chunks encoded in parallel before they are written. Limits how many are held in memory. */
+    private static final int BATCH_SIZE = 1024;
+
+    /** The number of chunks below which an encoding task no longer splits itself up. */
+    private static final int CHUNKS_PER_TASK = 64;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    /** The number of bytes flushed to the file so far. */
+    private long flushed;
+
+    /** The DEFLATE level chunks are compressed at, or 0 if they aren't compressed. */
+    private final int compression;
+
+    /**
+     * Opens a file for writing at the default compression level, replacing its contents if it already exists.
+     *
+     * @param path The path of the file.
+     * @throws IOException Thrown if the file can't be opened.
+     */
+    public LevelWriter(Path path) throws IOException {
+        this(path, DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Opens a file for writing, replacing its contents if it already exists.
+     *
+     * @param path The path of the file.
+     * @param compression The DEFLATE level to compress chunks at, from 1 (fastest) to 9 (smallest), or 0 to leave
+     *                    them uncompressed.
+     * @throws IOException Thrown if the file can't be opened.
+     */
+    public LevelWriter(Path path, int compression) throws IOException {
+        this(path, compression, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Opens a file for writing.
+     *
+     * @param path The path of the file.
+     * @param compression The DEFLATE level to compress chunks at, or 0 to leave them uncompressed.
+     * @param options How to open the file, in addition to opening it for writing.
+     * @throws IOException Thrown if the file can't be opened.
+     */
+    private LevelWriter(Path path, int compression, OpenOption... options) throws IOException {
+        if ((compression < Deflater.NO_COMPRESSION) || (compression > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level " + compression);
+        }
+
+        OpenOption[] writeOptions = Arrays.copyOf(options, options.length + 1);
+        writeOptions[options.length] = StandardOpenOption.WRITE;
+        channel = FileChannel.open(path, writeOptions);
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        flushed = 0;
+        this.compression = compression;
+    }
+
+    /**
+     * Writes a level to a file. The level is written to a temporary file first, which then replaces the file, so
+     * that the file is never left half-written and a level which is still being loaded from it keeps its contents.
+     *
+     * @param level The level to write.
+     * @param path The path of the file.
+     * @throws IOException Thrown if the file can't be written.
+     */
+    public static void write(LevelData level, Path path) throws IOException {
+        write(level, path, progress -> { });
+    }
+
+    /**
+     * Writes a level to a file, reporting progress as each chunk is written. The level is written to a temporary
+     * file first, which then replaces the file. Interrupting the writing thread cancels the write and leaves the file
+     * untouched.
+     *
+     * @param level The level to write.
+     * @param path The path of the file.
+     * @param progress Receives the percentage of chunks written so far, from 0 to 100.
+     * @throws IOException Thrown if the file can't be written, or if the write was interrupted.
+     */
+    public static void write(LevelData level, Path path, IntConsumer progress) throws IOException {
+        write(level, path, DEFAULT_COMPRESSION, progress);
+    }
+
+    /**
+     * Writes a level to a file at a given compression level, reporting progress as each chunk is written. The level
+     * is written to a temporary file first, which then replaces the file. Interrupting the writing thread cancels the
+     * write and leaves the file untouched.
+     *
+     * @param level The level to write.
+     * @param path The path of the file.
+     * @param compression The DEFLATE level to compress chunks at, from 1 (fastest) to 9 (smallest), or 0 to leave
+     *                    them uncompressed.
+     * @param progress Receives the percentage of chunks written so far, from 0 to 100.
+     * @throws IOException Thrown if the file can't be written, or if the write was interrupted.
+     */
+    public static void write(LevelData level, Path path, int compression, IntConsumer progress) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+
+        // The temporary file is created like any other new file, so that it gets the user's default permissions
+        LevelWriter writer;
+        try {
+            writer = new LevelWriter(temp, compression, StandardOpenOption.CREATE_NEW);
+        } catch (FileAlreadyExistsException e) {
+            throw new IOException(
+                    "Another save to " + absolute.getFileName() + " is in progress, or an earlier one was "
+                            + "interrupted. If it isn't being saved anymore, delete " + temp + " and try again.", e
+            );
+        }
+
+        try {
+            try {
+                writer.write(level, progress);
+            } finally {
+                writer.close();
+            }
+
+            // A file which is replaced keeps its permissions
+            PosixFileAttributeView target = Files.getFileAttributeView(absolute, PosixFileAttributeView.class);
+            if ((target != null) && Files.exists(absolute)) {
+                Files.setPosixFilePermissions(temp, target.readAttributes().permissions());
+            }
+
+            replace(temp, absolute);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Replaces a file with another one, atomically if the file system supports it.
+     *
+     * @param source The file to move.
+     * @param target The file to replace.
+     * @throws IOException Thrown if the file can't be replaced.
+     */
+    private static void replace(Path source, Path target) throws IOException {
+        try {
+            try {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (FileSystemException e) {
+            // Windows doesn't allow replacing a file while it's memory-mapped, which it is while a level opened from
+            // it is still in use, and the mapping is only released once the level has been garbage collected
+            throw new IOException(
+                    "Unable to replace " + target.getFileName() + " (" + e.getMessage() + "). If the level was opened "
+                            + "from this file, it may still be in use. Save the level under a different name instead.",
+                    e
+            );
+        }
+    }
+
+    /**
+     * Writes a level to the file.
+     *
+     * @param level The level to write.
+     * @throws IOException Thrown if the file can't be written.
+     */
+    public void write(LevelData level) throws IOException {
+        write(level, progress -> { });
+    }
+
+    /**
+     * Writes a level to the file, reporting progress as each chunk is written.
+     *
+     * @param level The level to write.
+     * @param progress Receives the percentage of chunks written so far, from 0 to 100.
+     * @throws IOException Thrown if the file can't be written, or if the write was interrupted.
+     */
+    public void write(LevelData level, IntConsumer progress) throws IOException {
+        // Header
+        ensure(8);
+        buffer.putInt(LevelFormat.MAGIC);
+        buffer.putShort(LevelFormat.VERSION);
+        buffer.putShort((compression > 0) ? LevelFormat.FLAG_DEFLATE : 0);
+
+        writeString(level.levelName);
+        writeVarint(level.width);
+        writeVarint(level.height);
+
+        // Collect each distinct tileset ID into the string table, so palette entries only store an index
+        HashMap<String, Integer> strings = new HashMap<>();
+        int[] stringIndices = new int[level.palette.size()];
+        for (int i = 1; i < level.palette.size(); i++) {
+            String tilesetID = level.palette.get(i).getTilesetID();
+
+            Integer index = strings.get(tilesetID);
+            if (index == null) {
+                index = strings.size();
+                strings.put(tilesetID, index);
+            }
+
+            stringIndices[i] = index;
+        }
+
+        String[] table = new String[strings.size()];
+        for (Map.Entry<String, Integer> entry : strings.entrySet()) {
+            table[entry.getValue()] = entry.getKey();
+        }
+
+        writeVarint(table.length);
+        for (String string : table) {
+            writeString(string);
+        }
+
+        // Palette (the empty entry is implied)
+        writeVarint(level.palette.size() - 1);
+        for (int i = 1; i < level.palette.size(); i++) {
+            Tile tile = level.palette.get(i);
+
+            writeVarint(stringIndices[i]);
+            writeVarint(tile.getSpriteIndex());
+            writeVarint(tile.getFlags());
+        }
+
+        // Chunks. The location of each one is kept for the index.
+        long[][] keys = new long[level.layers.length][];
+        long[][] offsets = new long[level.layers.length][];
+        int[][] lengths = new int[level.layers.length][];
+
+        long total = 0;
+        for (int i = 0; i < level.layers.length; i++) {
+            keys[i] = level.layers[i].getChunkKeys();
+            offsets[i] = new long[keys[i].length];
+            lengths[i] = new int[keys[i].length];
+            total += keys[i].length;
+        }
+
+        long written = 0;
+        int percent = 0;
+        progress.accept(percent);
+
+        // The chunks of the current batch, and the layer and position within the layer of each one
+        Chunk[] batch = new Chunk[BATCH_SIZE];
+        byte[][] payloads = new byte[BATCH_SIZE][];
+        int[] batchLayers = new int[BATCH_SIZE];
+        int[] batchPositions = new int[BATCH_SIZE];
+        int batchSize = 0;
+
+        for (int i = 0; i < level.layers.length; i++) {
+            Layer layer = level.layers[i];
+
+            for (int j = 0; j < keys[i].length; j++) {
+                // Chunks are fetched on this thread, since a layer may load them from its file as they're accessed
+                batch[batchSize] = layer.getChunk(Layer.keyX(keys[i][j]), Layer.keyY(keys[i][j]));
+                batchLayers[batchSize] = i;
+                batchPositions[batchSize] = j;
+                batchSize++;
+
+                boolean last = (i == level.layers.length - 1) && (j == keys[i].length - 1);
+                if ((batchSize < BATCH_SIZE) && !last) continue;
+
+                if (Thread.interrupted()) throw new InterruptedIOException("Level export was cancelled");
+
+                ForkJoinPool.commonPool().invoke(new EncodeTask(batch, payloads, compression, 0, batchSize));
+
+                for (int k = 0; k < batchSize; k++) {
+                    offsets[batchLayers[k]][batchPositions[k]] = offset();
+                    lengths[batchLayers[k]][batchPositions[k]] = payloads[k].length;
+                    writeBytes(ByteBuffer.wrap(payloads[k]));
+
+                    batch[k] = null;
+                    payloads[k] = null;
+
+                    // Only report whole percentages, so that listeners aren't flooded
+                    written++;
+                    if (written * 100 / total > percent) {
+                        percent = (int) (written * 100 / total);
+                        progress.accept(percent);
+                    }
+                }
+
+                batchSize = 0;
+            }
+        }
+
+        // Index
+        long indexOffset = offset();
+
+        writeVarint(level.layers.length);
+        for (int i = 0; i < level.layers.length; i++) {
+            Layer layer = level.layers[i];
+            writeString(layer.getName());
+            writeVarint(Varint.zigzag(layer.getOriginX()));
+            writeVarint(Varint.zigzag(layer.getOriginY()));
+
+            writeVarint(keys[i].length);
+            for (int j = 0; j < keys[i].length; j++) {
+                writeVarint(Varint.zigzag(Layer.keyX(keys[i][j])));
+                writeVarint(Varint.zigzag(Layer.keyY(keys[i][j])));
+                writeLongVarint(offsets[i][j]);
+                writeVarint(lengths[i][j]);
+            }
+        }
+
+        // Trailer
+        ensure(LevelFormat.TRAILER_BYTES);
+        buffer.putLong(indexOffset);
+        buffer.putInt(LevelFormat.INDEX_MAGIC);
+
+        progress.accept(100);
+    }
+
+    /**
+     * @return The position in the file which the next byte will be written to.
+     */
+    private long offset() {
+        return flushed + buffer.position();
+    }
+
+    /**
+     * Writes an unsigned varint.
+     */
+    private void writeVarint(int value) throws IOException {
+        ensure(Varint.MAX_BYTES);
+        Varint.write(buffer, value);
+    }
+
+    /**
+     * Writes an unsigned long varint.
+     */
+    private void writeLongVarint(long value) throws IOException {
+        ensure(Varint.MAX_LONG_BYTES);
+        Varint.writeLong(buffer, value);
+    }
+
+    /**
+     * Writes a string as its length in bytes followed by its UTF-8 bytes.
+     */
+    private void writeString(String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+
+        writeVarint(bytes.length);
+        writeBytes(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer.
+     */
+    private void writeBytes(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (!buffer.hasRemaining()) flush();
+
+            int length = Math.min(bytes.remaining(), buffer.remaining());
+            ByteBuffer slice = bytes.duplicate();
+            slice.limit(slice.position() + length);
+
+            buffer.put(slice);
+            bytes.position(bytes.position() + length);
+        }
+    }
+
+    /**
+     * Makes sure the buffer has room for the given number of bytes, flushing it if it doesn't.
+     */
+    private void ensure(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) flush();
+    }
+
+    /**
+     * Writes the contents of the buffer to the file.
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            flushed += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Encodes a range of chunks, splitting the range in half and encoding each half in parallel while it is large.
+     */
+    private static class EncodeTask extends RecursiveAction {
+        private final Chunk[] chunks;
+        private final byte[][] payloads;
+        private final int compression;
+        private final int start, end;
+
+        private EncodeTask(Chunk[] chunks, byte[][] payloads, int compression, int start, int end) {
+            this.chunks = chunks;
+            this.payloads = payloads;
+            this.compression = compression;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > CHUNKS_PER_TASK) {
+                int middle = (start + end) >>> 1;
+                invokeAll(
+                        new EncodeTask(chunks, payloads, compression, start, middle),
+                        new EncodeTask(chunks, payloads, compression, middle, end)
+                );
+                return;
+            }
+
+            ByteBuffer scratch = ByteBuffer.allocate(ChunkCodec.MAX_BYTES);
+            Deflater deflater = (compression > 0) ? new Deflater(compression, true) : null;
+
+            try {
+                for (int i = start; i < end; i++) {
+                    payloads[i] = ChunkCodec.encode(chunks[i], scratch, deflater);
+                }
+            } finally {
+                if (deflater != null) deflater.end();
+            }
+        }
+    }
+}
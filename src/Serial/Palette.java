@@ -0,0 +1,126 @@
+package Serial;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.function.BiFunction;
+
+/**
+ * The set of distinct tiles used by a level. Layers refer to tiles by their index in the palette rather than
+ * holding a reference to a tile in every cell. Index 0 is reserved for empty cells.
+ */
+public class Palette implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** The palette index of an empty cell. */
+    public static final int EMPTY = 0;
+
+    /** The tiles in the palette. The entry at index 0 is always null. */
+    private final ArrayList<Tile> entries;
+
+    /** Maps each tile's (tileset ID, sprite index, flags) to its index in the palette. */
+    private final HashMap<Key, Integer> indices;
+
+    /**
+     * Instantiates an empty palette.
+     */
+    public Palette() {
+        entries = new ArrayList<>();
+        indices = new HashMap<>();
+        entries.add(null);
+    }
+
+    /**
+     * Instantiates a copy of another palette.
+     *
+     * @param palette The palette to copy.
+     */
+    public Palette(Palette palette) {
+        entries = new ArrayList<>(palette.entries);
+        indices = new HashMap<>(palette.indices);
+    }
+
+    /**
+     * Returns the index of the given tile, adding it to the palette first if it isn't already in it.
+     *
+     * @param tile The tile to find.
+     * @return The palette index of the tile, or {@link #EMPTY} if the tile is null.
+     */
+    public int indexOf(Tile tile) {
+        if (tile == null) return EMPTY;
+
+        Key key = new Key(tile.getTilesetID(), tile.getSpriteIndex(), tile.getFlags());
+        Integer index = indices.get(key);
+        if (index != null) return index;
+
+        entries.add(tile);
+        indices.put(key, entries.size() - 1);
+
+        return entries.size() - 1;
+    }
+
+    /**
+     * Resolves the sprite of every tile in the palette, such as after the palette was loaded from a file or a new
+     * tileset was imported. Each tileset reference is looked up once per palette entry rather than once per cell.
+     *
+     * @param lookup Finds the tile with the given tileset ID and sprite index. Returns null if there isn't one.
+     */
+    public void resolve(BiFunction<String, Integer, Tile> lookup) {
+        for (int i = 1; i < entries.size(); i++) {
+            Tile entry = entries.get(i);
+            if (entry.atlas != null) continue;
+
+            Tile source = lookup.apply(entry.getTilesetID(), entry.getSpriteIndex());
+            if (source == null) continue;
+
+            entry.sprite = source.sprite;
+            entry.atlas = source.atlas;
+        }
+    }
+
+    /**
+     * @param index The palette index of the tile.
+     * @return The tile at the given index, or null if the index is {@link #EMPTY}.
+     */
+    public Tile get(int index) {
+        return entries.get(index);
+    }
+
+    /**
+     * @return The number of entries in the palette, including the empty entry.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * The identifier of a tile within the palette.
+     */
+    private static final class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final String tilesetID;
+        private final int spriteIndex;
+        private final int flags;
+
+        private Key(String tilesetID, int spriteIndex, int flags) {
+            this.tilesetID = tilesetID;
+            this.spriteIndex = spriteIndex;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key key = (Key) o;
+            return (spriteIndex == key.spriteIndex) && (flags == key.flags) && Objects.equals(tilesetID, key.tilesetID);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(tilesetID, spriteIndex, flags);
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package Serial;
 
+import Rendering.SpriteCache;
+import Rendering.TextureAtlas;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
@@ -10,6 +13,10 @@ import java.io.Serializable;
  */
 public class Tile implements Serializable {
     private static final long serialVersionUID = 2L;
+
+    /** The flag which is set when the tile is collidable. */
+    public static final int FLAG_COLLIDABLE = 1;
+
     /** The ID of the tileset this tile uses. */
     private String tilesetID;
 
@@ -18,6 +25,9 @@ public class Tile implements Serializable {
 
     public transient BufferedImage sprite;
 
+    /** The texture atlas of the tileset, which the sprite is drawn from. */
+    public transient TextureAtlas atlas;
+
     public boolean collidable;
 
     /**
@@ -28,20 +38,67 @@ public class Tile implements Serializable {
      * @param tilesetID The ID representing which tileset the sprite comes from.
      */
     public Tile(BufferedImage sprite, int spriteIndex, String tilesetID) {
+        this(sprite, spriteIndex, tilesetID, null);
+    }
+
+    /**
+     * Instantiates a tile object whose sprite is drawn from a texture atlas.
+     *
+     * @param sprite The sprite object.
+     * @param spriteIndex The index of the sprite in its tileset and atlas.
+     * @param tilesetID The ID representing which tileset the sprite comes from.
+     * @param atlas The texture atlas of the tileset.
+     */
+    public Tile(BufferedImage sprite, int spriteIndex, String tilesetID, TextureAtlas atlas) {
         this.sprite = sprite;
         this.spriteIndex = spriteIndex;
         this.tilesetID = tilesetID;
+        this.atlas = atlas;
         collidable = false;
     }
 
+    /**
+     * Instantiates a tile whose sprite hasn't been resolved yet, such as one loaded from a level file.
+     *
+     * @param tilesetID The ID representing which tileset the sprite comes from.
+     * @param spriteIndex The index of the sprite in its tileset.
+     * @param flags The tile's properties packed into a set of flags.
+     */
+    public Tile(String tilesetID, int spriteIndex, int flags) {
+        this(null, spriteIndex, tilesetID, null);
+        collidable = (flags & FLAG_COLLIDABLE) != 0;
+    }
+
     public Tile(Tile tile) {
         if (tile == null) return;
         sprite = tile.sprite;
+        atlas = tile.atlas;
         spriteIndex = tile.spriteIndex;
         tilesetID = tile.tilesetID;
         collidable = tile.collidable;
     }
 
+    /**
+     * @return The ID of the tileset this tile uses.
+     */
+    public String getTilesetID() {
+        return tilesetID;
+    }
+
+    /**
+     * @return The index of the sprite in its tileset.
+     */
+    public int getSpriteIndex() {
+        return spriteIndex;
+    }
+
+    /**
+     * @return The tile's properties packed into a set of flags.
+     */
+    public int getFlags() {
+        return collidable ? FLAG_COLLIDABLE : 0;
+    }
+
     /**
      * @return The sprite of the tile.
      */
@@ -56,11 +113,29 @@ public class Tile implements Serializable {
      * @param x The x coordinate of the top-left corner of the tile.
      * @param y The y coordinate of the top-left corner of the tile.
      * @param scaledSize The width/height of the tile that will be taken up on screen.
+     * @param cache The cache holding the pre-scaled atlas pages.
      * @param canvas The component which the tile will be drawn on.
      */
-    public void draw(Graphics2D g2, int x, int y, int scaledSize, JComponent canvas) {
-        // Draw the tile's (scaled) sprite
-        g2.drawImage(sprite.getScaledInstance(scaledSize, scaledSize, Image.SCALE_FAST), x, y, canvas);
+    public void draw(Graphics2D g2, int x, int y, int scaledSize, SpriteCache cache, JComponent canvas) {
+        if (atlas == null) {
+            // Draw the tile's sprite, scaling it on the fly
+            g2.drawImage(sprite, x, y, scaledSize, scaledSize, canvas);
+            return;
+        }
+
+        // Draw the tile's sprite straight out of its (cached, pre-scaled) atlas page
+        atlas.draw(g2, spriteIndex, x, y, scaledSize, cache, canvas);
+    }
+
+    /**
+     * @return The average color of the tile's sprite as ARGB, which the tile is drawn as when it's too small for its
+     *         sprite to be made out. Is fully transparent if the sprite hasn't been resolved.
+     */
+    public int getAverageColor() {
+        if (atlas != null) return atlas.getAverageColor(spriteIndex);
+        if (sprite == null) return 0;
+
+        return TextureAtlas.averageColor(sprite, 0, 0, sprite.getWidth(), sprite.getHeight());
     }
 
     @Override
@@ -0,0 +1,431 @@
+package Serial;
+
+import Rendering.TextureAtlas;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A directory of tileset images which have already been sliced, so that tilesets can be loaded without decoding and
+ * slicing their images again. Each sliced tileset is stored in its own file, named after the SHA-256 hash of the
+ * image file's contents and the tile size, so a cached tileset is never used once its image has changed.
+ * <pre>
+ * cache file:  magic (int), version (short), tile size (int), followed by a DEFLATE stream of:
+ *              rows/columns (ints), sprite count (int), sprite positions (ints), sprite originals (ints),
+ *              sprite slots (ints), page count (int), then each page's width/height (ints) and ARGB pixels (ints)
+ * </pre>
+ * The cache also keeps a registry of the tilesets the user has imported (their IDs, source images and tile sizes),
+ * so that they can be loaded again when the editor starts. The registry also records the size and modification time
+ * each image had when it was hashed, so that images which haven't changed don't need to be hashed again.
+ */
+public class TilesetCache {
+    /** The magic number at the start of every cache file, "TSET". */
+    public static final int MAGIC = 0x54534554;
+
+    /** The magic number at the start of the registry, "TREG". */
+    public static final int REGISTRY_MAGIC = 0x54524547;
+
+    public static final short VERSION = 1;
+
+    /** The version of the registry, which is versioned separately from the cache files. */
+    public static final short REGISTRY_VERSION = 2;
+
+    /** The largest number of ints read into a single array, so that its size in bytes still fits into an int. */
+    private static final int MAX_INTS = (Integer.MAX_VALUE - 8) / 4;
+
+    /** The number of ints read at a time, so that memory is only allocated for ints which are actually there. */
+    private static final int BLOCK_INTS = 64 * 1024;
+
+    private static final String SUFFIX = ".tiles";
+    private static final String REGISTRY = "tilesets.dat";
+
+    /** The directory holding the cache files and the registry. */
+    private final Path directory;
+
+    /** The registered tilesets by ID, in the order they were imported. */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Opens a cache directory, creating it if it doesn't exist.
+     *
+     * @param directory The directory holding the cache files and the registry.
+     * @throws IOException Thrown if the directory couldn't be created or the registry couldn't be read.
+     */
+    public TilesetCache(Path directory) throws IOException {
+        this.directory = directory;
+        entries = new LinkedHashMap<>();
+
+        Files.createDirectories(directory);
+        readRegistry();
+    }
+
+    /**
+     * @param content The contents of an image file.
+     * @return The hexadecimal SHA-256 hash of the contents.
+     */
+    public static String hash(byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every Java platform is required to support SHA-256
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(content)) {
+            hex.append(String.format("%02x", b));
+        }
+
+        return hex.toString();
+    }
+
+    /**
+     * Loads a sliced tileset from the cache. Safe to call from multiple threads.
+     *
+     * @param hash The hash of the image file's contents.
+     * @param tileSize The width/height of each tile in pixels.
+     * @return The sliced tileset, or null if it isn't cached.
+     * @throws IOException Thrown if the cache file couldn't be read or is malformed.
+     */
+    public TilesetData load(String hash, int tileSize) throws IOException {
+        Path file = fileOf(hash, tileSize);
+
+        InputStream in;
+        try {
+            in = Files.newInputStream(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        try (DataInputStream header = new DataInputStream(new BufferedInputStream(in))) {
+            if ((header.readInt() != MAGIC) || (header.readShort() != VERSION) || (header.readInt() != tileSize)) {
+                return null; // Written by an older version of the editor, so it will be replaced
+            }
+
+            DataInputStream data = new DataInputStream(new BufferedInputStream(new InflaterInputStream(header)));
+
+            int rows = data.readInt();
+            int columns = data.readInt();
+            int count = data.readInt();
+            long tiles = (long) rows * columns;
+            if ((rows < 0) || (columns < 0) || (count < 0) || (count > tiles) || (count > MAX_INTS)) {
+                throw new IOException("Malformed tileset cache file " + file.getFileName());
+            }
+
+            int[] positions = readInts(data, count);
+            int[] originals = readInts(data, count);
+            int[] slots = readInts(data, count);
+
+            for (int i = 0; i < count; i++) {
+                if ((positions[i] < 0) || (positions[i] >= tiles)
+                        || (originals[i] < 0) || (originals[i] > i)) {
+                    throw new IOException("Malformed tileset cache file " + file.getFileName());
+                }
+            }
+
+            // Every page but an atlas's only one holds at least one sprite
+            int pageCount = data.readInt();
+            if ((pageCount < 0) || (pageCount > Math.max(1, count))) {
+                throw new IOException("Malformed tileset cache file " + file.getFileName());
+            }
+
+            BufferedImage[] pages = new BufferedImage[pageCount];
+            for (int page = 0; page < pages.length; page++) {
+                int width = data.readInt();
+                int height = data.readInt();
+                if ((width <= 0) || (height <= 0) || ((long) width > (long) TextureAtlas.PAGE_SIZE + tileSize)
+                        || ((long) height > (long) TextureAtlas.PAGE_SIZE + tileSize)
+                        || ((long) width * height > MAX_INTS)) {
+                    throw new IOException("Malformed tileset cache file " + file.getFileName());
+                }
+
+                pages[page] = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                pages[page].setRGB(0, 0, width, height, readInts(data, width * height), 0, width);
+            }
+
+            TextureAtlas atlas;
+            try {
+                atlas = new TextureAtlas(tileSize, pages, slots);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed tileset cache file " + file.getFileName(), e);
+            }
+
+            return new TilesetData(tileSize, rows, columns, positions, originals, atlas);
+        } catch (EOFException e) {
+            throw new IOException("Truncated tileset cache file " + file.getFileName(), e);
+        }
+    }
+
+    /**
+     * Stores a sliced tileset in the cache, replacing the file atomically so that a partly written file is never
+     * loaded. Safe to call from multiple threads.
+     *
+     * @param hash The hash of the image file's contents.
+     * @param tileset The sliced tileset.
+     * @throws IOException Thrown if the cache file couldn't be written.
+     */
+    public void store(String hash, TilesetData tileset) throws IOException {
+        Path file = fileOf(hash, tileset.tileSize);
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+        try {
+            OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp));
+            try (DataOutputStream header = new DataOutputStream(out)) {
+                header.writeInt(MAGIC);
+                header.writeShort(VERSION);
+                header.writeInt(tileset.tileSize);
+
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try {
+                    DataOutputStream data = new DataOutputStream(
+                            new BufferedOutputStream(new DeflaterOutputStream(header, deflater))
+                    );
+
+                    TextureAtlas atlas = tileset.atlas;
+                    int[] slots = new int[atlas.size()];
+                    for (int i = 0; i < slots.length; i++) {
+                        slots[i] = atlas.getSlot(i);
+                    }
+
+                    data.writeInt(tileset.rows);
+                    data.writeInt(tileset.columns);
+                    data.writeInt(tileset.positions.length);
+                    writeInts(data, tileset.positions);
+                    writeInts(data, tileset.originals);
+                    writeInts(data, slots);
+
+                    data.writeInt(atlas.getPageCount());
+                    for (int page = 0; page < atlas.getPageCount(); page++) {
+                        BufferedImage image = atlas.getPage(page);
+                        data.writeInt(image.getWidth());
+                        data.writeInt(image.getHeight());
+                        writeInts(data, image.getRGB(
+                                0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()
+                        ));
+                    }
+
+                    data.close(); // Finishes the DEFLATE stream
+                } finally {
+                    deflater.end();
+                }
+            }
+
+            move(temp, file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @return The registered tilesets, in the order they were imported.
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * @param tilesetID The ID of a tileset.
+     * @return The registered tileset with the given ID, or null if there isn't one.
+     */
+    public synchronized Entry getEntry(String tilesetID) {
+        return entries.get(tilesetID);
+    }
+
+    /**
+     * Registers a tileset, replacing any tileset registered with the same ID. The cache file of the replaced tileset
+     * is deleted if no other tileset uses it.
+     *
+     * @param entry The tileset to register.
+     * @throws IOException Thrown if the registry couldn't be written.
+     */
+    public synchronized void register(Entry entry) throws IOException {
+        Entry replaced = entries.remove(entry.id);
+        entries.put(entry.id, entry);
+        writeRegistry();
+
+        if ((replaced == null) || fileOf(replaced).equals(fileOf(entry))) return;
+        for (Entry other : entries.values()) {
+            if (fileOf(other).equals(fileOf(replaced))) return;
+        }
+
+        Files.deleteIfExists(fileOf(replaced));
+    }
+
+    private Path fileOf(String hash, int tileSize) {
+        return directory.resolve(hash + "-" + tileSize + SUFFIX);
+    }
+
+    private Path fileOf(Entry entry) {
+        return fileOf(entry.hash, entry.tileSize);
+    }
+
+    private void readRegistry() throws IOException {
+        Path file = directory.resolve(REGISTRY);
+        if (!Files.exists(file)) return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != REGISTRY_MAGIC) throw new IOException("Unsupported tileset registry");
+
+            short version = in.readShort();
+            if ((version < 1) || (version > REGISTRY_VERSION)) throw new IOException("Unsupported tileset registry");
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                Path source = Paths.get(in.readUTF());
+                int tileSize = in.readInt();
+                String hash = in.readUTF();
+
+                // Images registered before their size and modification time were recorded are hashed once more
+                long size = (version >= 2) ? in.readLong() : -1;
+                long lastModified = (version >= 2) ? in.readLong() : -1;
+
+                Entry entry = new Entry(id, source, tileSize, hash, size, lastModified);
+                entries.put(entry.id, entry);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated tileset registry", e);
+        }
+    }
+
+    private void writeRegistry() throws IOException {
+        Path file = directory.resolve(REGISTRY);
+        Path temp = Files.createTempFile(directory, REGISTRY, ".tmp");
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(REGISTRY_MAGIC);
+                out.writeShort(REGISTRY_VERSION);
+                out.writeInt(entries.size());
+
+                for (Entry entry : entries.values()) {
+                    out.writeUTF(entry.id);
+                    out.writeUTF(entry.source.toAbsolutePath().toString());
+                    out.writeInt(entry.tileSize);
+                    out.writeUTF(entry.hash);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+                }
+            }
+
+            move(temp, file);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads an array of ints in bulk rather than one at a time. The ints are read in blocks, and the array grows as
+     * they arrive, so that a malformed count in a truncated file can't allocate much more memory than the file holds.
+     *
+     * @param count The number of ints, at most {@link #MAX_INTS}.
+     */
+    private static int[] readInts(DataInputStream in, int count) throws IOException {
+        byte[] bytes = new byte[Math.min(count, BLOCK_INTS) * 4];
+        int[] values = new int[Math.min(count, BLOCK_INTS)];
+
+        for (int read = 0; read < count; ) {
+            int length = Math.min(count - read, BLOCK_INTS);
+            in.readFully(bytes, 0, length * 4);
+
+            if (read + length > values.length) {
+                values = Arrays.copyOf(values, (int) Math.min(count, 2L * values.length + length));
+            }
+
+            ByteBuffer.wrap(bytes, 0, length * 4).asIntBuffer().get(values, read, length);
+            read += length;
+        }
+
+        return values;
+    }
+
+    /**
+     * Writes an array of ints in bulk rather than one at a time.
+     */
+    private static void writeInts(OutputStream out, int[] values) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(values.length * 4);
+        bytes.asIntBuffer().put(values);
+        out.write(bytes.array());
+    }
+
+    /**
+     * A tileset the user has imported.
+     */
+    public static class Entry {
+        /** The ID of the tileset. */
+        public final String id;
+
+        /** The image file the tileset was imported from. */
+        public final Path source;
+
+        /** The width/height of each tile in pixels. */
+        public final int tileSize;
+
+        /** The hash of the image file's contents when it was last sliced. */
+        public final String hash;
+
+        /** The size and modification time of the image file when it was hashed, or -1 if they aren't known. */
+        public final long size, lastModified;
+
+        /**
+         * @param id The ID of the tileset.
+         * @param source The image file the tileset was imported from.
+         * @param tileSize The width/height of each tile in pixels.
+         * @param hash The hash of the image file's contents.
+         * @param attributes The attributes of the image file, read before its contents were hashed.
+         */
+        public Entry(String id, Path source, int tileSize, String hash, BasicFileAttributes attributes) {
+            this(id, source, tileSize, hash, attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+
+        private Entry(String id, Path source, int tileSize, String hash, long size, long lastModified) {
+            this.id = id;
+            this.source = source;
+            this.tileSize = tileSize;
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @param attributes The current attributes of the image file.
+         * @return Whether the image file still has the size and modification time it had when it was hashed, in which
+         *         case its contents are assumed to be unchanged.
+         */
+        public boolean isUnchanged(BasicFileAttributes attributes) {
+            return (attributes.size() == size) && (attributes.lastModifiedTime().toMillis() == lastModified);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package Serial;
+
+import Rendering.TextureAtlas;
+
+/**
+ * The sprites of a tileset image after it has been sliced: where each non-empty tile is in the image, which sprites
+ * are duplicates of each other, and the atlas they are packed into.
+ */
+public class TilesetData {
+    /** The width/height of each tile in pixels. */
+    public final int tileSize;
+
+    /** The number of rows/columns of tiles in the image. */
+    public final int rows, columns;
+
+    /** The position of each sprite in the image, stored as {@code y * columns + x}. Empty tiles have no sprite. */
+    public final int[] positions;
+
+    /** The index of the first identical copy of each sprite, which is the sprite's own index if it's unique. */
+    public final int[] originals;
+
+    /** The atlas which the sprites are packed into. */
+    public final TextureAtlas atlas;
+
+    public TilesetData(int tileSize, int rows, int columns, int[] positions, int[] originals, TextureAtlas atlas) {
+        this.tileSize = tileSize;
+        this.rows = rows;
+        this.columns = columns;
+        this.positions = positions;
+        this.originals = originals;
+        this.atlas = atlas;
+    }
+}
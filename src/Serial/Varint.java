@@ -0,0 +1,107 @@
+package Serial;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for reading and writing variable-length integers. Small values take up fewer bytes: each byte stores 7 bits
+ * of the value, and its highest bit is set if more bytes follow.
+ */
+public final class Varint {
+    /** The maximum number of bytes a single varint can take up. */
+    public static final int MAX_BYTES = 5;
+
+    /** The maximum number of bytes a single long varint can take up. */
+    public static final int MAX_LONG_BYTES = 10;
+
+    private Varint() {
+    }
+
+    /**
+     * Writes an unsigned varint.
+     *
+     * @param buffer The buffer to write to.
+     * @param value The value to write, treated as unsigned.
+     */
+    public static void write(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned varint.
+     *
+     * @param buffer The buffer to read from.
+     * @return The value that was read.
+     */
+    public static int read(ByteBuffer buffer) {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) return value;
+        }
+
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Writes an unsigned long varint. Values which fit into an int are written the same way as by
+     * {@link #write(ByteBuffer, int)}.
+     *
+     * @param buffer The buffer to write to.
+     * @param value The value to write, treated as unsigned.
+     */
+    public static void writeLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned long varint.
+     *
+     * @param buffer The buffer to read from.
+     * @return The value that was read.
+     */
+    public static long readLong(ByteBuffer buffer) {
+        long value = 0;
+
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) return value;
+        }
+
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Maps a signed value to an unsigned one, so that values close to zero (including negative ones) stay small.
+     *
+     * @param value The signed value.
+     * @return The zigzag-encoded value.
+     */
+    public static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Reverses {@link #zigzag(int)}.
+     *
+     * @param value The zigzag-encoded value.
+     * @return The signed value.
+     */
+    public static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}